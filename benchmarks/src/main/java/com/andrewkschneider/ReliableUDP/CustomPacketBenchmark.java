@@ -0,0 +1,105 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and parsing a data packet, checksum included, both
+ * through CustomPacket and through the PacketView flyweight the Sender and
+ * Receiver use on the wire.
+ * Every operation handles one packet, so the score is in packets per second,
+ * the megabytes counter comes out next to it as a rate per second. Run with
+ * -prof gc to get the allocation rate as well.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CustomPacketBenchmark {
+
+    @Param({"0", "64", "500", "1400", "8192"})
+    private int payloadSize;
+
+    @Param({"crc32c", "internet"})
+    private String checksum;
+
+    private InetAddress address;
+    private byte[] payload;
+    private byte[] encoded;
+    private ByteBuffer source;
+    private ByteBuffer packet;
+    private final PacketView view = new PacketView();
+    private PacketChecksum type;
+    private int seqno = 1;
+
+    /**
+     * Bytes handled, reported per second by JMH
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset(){ megabytes = 0; }
+
+        void count(int length){ megabytes += length / 1e6; }
+    }
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        address = InetAddress.getLoopbackAddress();
+        type = PacketChecksum.forName(checksum);
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        CustomPacket original = new CustomPacket(payload, 1, (short)0);
+        original.setChecksum(type);
+        encoded = original.getPacket(address, 9876).getData();
+
+        source = ByteBuffer.allocateDirect(payloadSize);
+        source.put(payload).flip();
+        packet = ByteBuffer.allocateDirect(PacketView.HEADER_LENGTH + payloadSize + PacketChecksum.TRAILER_LENGTH);
+        view.wrap(packet).writeData(0, 1, 1, source.duplicate(), payloadSize);
+        type.seal(packet);
+    }
+
+    @Benchmark
+    public DatagramPacket encode(Counters counters){
+        CustomPacket custom = new CustomPacket(payload, seqno++, (short)0);
+        custom.setChecksum(type);
+        DatagramPacket datagram = custom.getPacket(address, 9876);
+        counters.count(datagram.getLength());
+        return datagram;
+    }
+
+    @Benchmark
+    public CustomPacket parse(Counters counters){
+        counters.count(encoded.length);
+        return new CustomPacket(encoded);
+    }
+
+    @Benchmark
+    public ByteBuffer viewEncode(Counters counters){
+        source.rewind();
+        view.wrap(packet).writeData(0, 1, seqno++, source, payloadSize);
+        type.seal(packet);
+        counters.count(packet.remaining());
+        return packet;
+    }
+
+    @Benchmark
+    public boolean viewParse(Counters counters){
+        boolean valid = PacketChecksum.verify(packet);
+        view.wrap(packet);
+        counters.count(view.getLen());
+        return valid && view.getSeqno() + view.getPayloadLength() > 0;
+    }
+}
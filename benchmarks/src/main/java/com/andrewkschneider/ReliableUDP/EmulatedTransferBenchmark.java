@@ -0,0 +1,168 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures whole file transfers over a NetworkEmulator instead of loopback,
+ * so loss, bursts, reordering and latency are the same from run to run and
+ * don't depend on what else the machine is doing. The data path to the
+ * Receiver gets the impairments being measured, acks only the latency.
+ * Besides throughput, the retransmissions and rebuilt packets each transfer
+ * took are counted, to compare how well selective repeat and forward error
+ * correction recover under each kind of loss. A transfer that fails throws,
+ * which fails the benchmark.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EmulatedTransferBenchmark {
+
+    private static final int PORT = 9000;
+
+    // average loss of 2% either way, the bursts averaging 4 packets
+    private static final double LOSS = 0.02;
+
+    @Param({"bernoulli", "gilbert"})
+    private String lossModel;
+
+    @Param({"0", "0.05"})
+    private double reordering;
+
+    @Param({"0", "10"})
+    private double delay;
+
+    @Param({"0", "8"})
+    private int fecGroup;
+
+    @Param({"32"})
+    private int windowSize;
+
+    @Param({"1452"})
+    private int packetSize;
+
+    @Param({"1048576"})
+    private int fileSize;
+
+    @Param({"42"})
+    private long seed;
+
+    private Path directory;
+    private Path input;
+    private NetworkEmulator network;
+    private Receiver receiver;
+    private int transfers = 0;
+    private PrintStream console;
+
+    /**
+     * Recovery work, reported as totals for the iteration
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Recovery {
+        public long retransmissions;
+        public long recovered;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            retransmissions = 0;
+            recovered = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("reliableudp-bench");
+        input = directory.resolve("input.bin");
+        byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        Files.write(input, data);
+
+        console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        }));
+
+        LinkModel acks = new LinkModel();
+        acks.setDelay(delay, delay / 10);
+        LinkModel path = new LinkModel();
+        path.setDelay(delay, delay / 10);
+        path.setReordering(reordering, 1 + delay / 2);
+        // Gilbert-Elliott with r = 1/4 and a bad state that loses everything, entered often enough for the same average
+        if (lossModel.equals("gilbert")) path.setBurstLoss(LOSS * 0.25 / (1 - LOSS), 0.25, 1);
+        else path.setLoss(LOSS);
+        network = new NetworkEmulator(acks, seed);
+        network.setLink(PORT, path);
+
+        Receiver.Builder builder = new Receiver.Builder();
+        builder.setAddress("127.0.0.1");
+        builder.setPort(PORT);
+        builder.setTransport(network);
+        builder.setPacketSize(packetSize);
+        builder.setWindowSize(windowSize);
+        builder.setSelectiveRepeat(true);
+        builder.setServer(true);
+        builder.setLogSampling(0);
+        builder.setFileName(directory.resolve("output.bin").toString());
+        receiver = builder.create();
+
+        Thread thread = new Thread(receiver::receive, "receiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Benchmark
+    public void transfer(TransferCounters counters, Recovery recovery) throws IOException {
+        Sender.Builder builder = Sender.Builder();
+        builder.setReceiverIp("127.0.0.1");
+        builder.setPort(PORT);
+        builder.setTransport(network);
+        builder.setFileName(input.toString());
+        builder.setPacketSize(packetSize);
+        builder.setWindowSize(windowSize);
+        builder.setSelectiveRepeat(true);
+        builder.setLogSampling(0);
+        if (fecGroup > 0) builder.setFec(fecGroup, 1);
+        // a fresh transfer id every time so each transfer lands in a file of its own
+        builder.setConnectionId(++transfers << 8);
+        Sender sender = builder.create();
+        long recovered = receiver.getMetrics().getPacketsRecovered();
+        sender.transfer();
+
+        counters.delivered(fileSize, packetSize);
+        recovery.retransmissions += sender.getMetrics().getRetransmissions();
+        recovery.recovered += receiver.getMetrics().getPacketsRecovered() - recovered;
+    }
+
+    /**
+     * Clears out what the Receiver wrote during the iteration, so long runs don't fill the disk
+     */
+    @TearDown(Level.Iteration)
+    public void clean() throws IOException {
+        try (DirectoryStream<Path> outputs = Files.newDirectoryStream(directory, "output-*")){
+            for (Path output: outputs) Files.deleteIfExists(output);
+        }
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        System.setOut(console);
+        clean();
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(directory);
+    }
+}
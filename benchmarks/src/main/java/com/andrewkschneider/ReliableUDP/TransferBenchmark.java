@@ -0,0 +1,132 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramSocket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a whole file transfer from a Sender to a Receiver over loopback.
+ * The Receiver runs in server mode for the length of a trial and every
+ * operation is one call to Sender.transfer(), with loss simulated on both ends
+ * through their drop rates, with and without pacing and with the Receiver
+ * taking datagrams one or many at a time. Throughput comes out as megabytes and packets per
+ * second, run with -prof gc to get the allocation rate as well. A transfer
+ * that fails throws, which fails the benchmark rather than ending the JVM.
+ *
+ * Packet events aren't logged, and the few lines that are still printed go
+ * nowhere so they don't end up in JMH's output.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+
+    @Param({"8", "32", "128"})
+    private int windowSize;
+
+    @Param({"500", "1400", "8192"})
+    private int packetSize;
+
+    @Param({"0", "0.01", "0.05"})
+    private double loss;
+
+    @Param({"1048576"})
+    private int fileSize;
+
+    @Param({"false", "true"})
+    private boolean pacing;
+
+    @Param({"1", "32"})
+    private int batchSize;
+
+    private Path directory;
+    private Path input;
+    private int port;
+    private int transfers = 0;
+    private PrintStream console;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("reliableudp-bench");
+        input = directory.resolve("input.bin");
+        byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        Files.write(input, data);
+
+        try (DatagramSocket socket = new DatagramSocket(0)){
+            port = socket.getLocalPort();
+        }
+
+        console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        }));
+
+        Receiver.Builder builder = new Receiver.Builder();
+        builder.setAddress("127.0.0.1");
+        builder.setPort(port);
+        builder.setPacketSize(packetSize);
+        builder.setWindowSize(windowSize);
+        builder.setDropCorruptRate(loss);
+        builder.setSelectiveRepeat(true);
+        builder.setServer(true);
+        builder.setLogSampling(0);
+        builder.setBatchSize(batchSize);
+        builder.setFileName(directory.resolve("output.bin").toString());
+        Receiver receiver = builder.create();
+
+        Thread thread = new Thread(receiver::receive, "receiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Benchmark
+    public void transfer(TransferCounters counters) throws IOException {
+        Sender.Builder builder = Sender.Builder();
+        builder.setReceiverIp("127.0.0.1");
+        builder.setPort(port);
+        builder.setFileName(input.toString());
+        builder.setPacketSize(packetSize);
+        builder.setWindowSize(windowSize);
+        builder.setDropCorruptRate(loss);
+        builder.setSelectiveRepeat(true);
+        builder.setLogSampling(0);
+        builder.setPacing(pacing);
+        // a fresh transfer id every time so each transfer lands in a file of its own
+        builder.setConnectionId(++transfers << 8);
+        builder.create().transfer();
+        counters.delivered(fileSize, packetSize);
+    }
+
+    /**
+     * Clears out what the Receiver wrote during the iteration, so long runs don't fill the disk
+     */
+    @TearDown(Level.Iteration)
+    public void clean() throws IOException {
+        try (DirectoryStream<Path> outputs = Files.newDirectoryStream(directory, "output-*")){
+            for (Path output: outputs) Files.deleteIfExists(output);
+        }
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        System.setOut(console);
+        clean();
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(directory);
+    }
+}
@@ -0,0 +1,27 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Bytes and packets the transfer benchmarks delivered, reported per second by JMH
+ */
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+@State(Scope.Thread)
+public class TransferCounters {
+    public double megabytes;
+    public long packets;
+
+    @Setup(Level.Iteration)
+    public void reset(){
+        megabytes = 0;
+        packets = 0;
+    }
+
+    /**
+     * Counts one whole transfer, a data packet per packetSize bytes of the file
+     */
+    void delivered(int fileSize, int packetSize){
+        megabytes += fileSize / 1e6;
+        packets += (fileSize + packetSize - 1) / packetSize;
+    }
+}
@@ -0,0 +1,77 @@
+package com.andrewkschneider.ReliableUDP;
+
+/**
+ * AbstractCongestionController holds the parts Reno and CUBIC share: slow
+ * start, fast retransmit on the third duplicate ack, fast recovery, and the
+ * collapse to one packet on a timeout. Subclasses only decide how the window
+ * grows in congestion avoidance and how far it is cut on a loss.
+ *
+ * Fast recovery follows RFC 6675 rather than Reno: the Sender already keeps
+ * only pipe() packets in flight, and every SACKed or lost packet leaves the
+ * pipe, so cwnd is cut to ssthresh once and never inflated. Recovery lasts
+ * until everything sent before it started has been acked, and each partial
+ * ack on the way resends the next hole, as NewReno does (RFC 6582).
+ */
+abstract class AbstractCongestionController implements CongestionController {
+
+    private static final int DUP_ACK_THRESHOLD = 3;
+
+    protected double cwnd;
+    protected double ssthresh;
+    private int dupAcks = 0;
+    private boolean inRecovery = false;
+    private int recoveryPoint;
+
+    AbstractCongestionController(int initialWindow, int initialThreshold){
+        cwnd = initialWindow;
+        ssthresh = initialThreshold;
+    }
+
+    public int getWindow() { return Math.max(1, (int)cwnd); }
+    public double getThreshold() { return ssthresh; }
+    public boolean isInRecovery() { return inRecovery; }
+
+    @Override
+    public boolean onAck(int ackno, int acked, double srtt){
+        dupAcks = 0;
+        if (inRecovery){
+            // cwnd stays at ssthresh until the last packet sent before the loss is acked
+            if (ackno < recoveryPoint) return true;
+            inRecovery = false;
+        }
+        else if (cwnd < ssthresh) cwnd += acked;
+        else congestionAvoidance(acked, srtt);
+        return false;
+    }
+
+    @Override
+    public boolean onDuplicateAck(int next){
+        dupAcks++;
+        if (inRecovery || dupAcks < DUP_ACK_THRESHOLD) return false;
+
+        ssthresh = Math.max(2, reduce());
+        cwnd = ssthresh;
+        inRecovery = true;
+        recoveryPoint = next;
+        return true;
+    }
+
+    @Override
+    public void onTimeout(){
+        ssthresh = Math.max(2, reduce());
+        cwnd = 1;
+        dupAcks = 0;
+        inRecovery = false;
+    }
+
+    /**
+     * Grows cwnd once it is past ssthresh
+     */
+    protected abstract void congestionAvoidance(int acked, double srtt);
+
+    /**
+     * Called on a loss, before cwnd is touched
+     * @return new slow start threshold
+     */
+    protected abstract double reduce();
+}
@@ -0,0 +1,69 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool hands out direct ByteBuffers of a single size and takes them
+ * back once a packet is done with, so the send and receive loops don't
+ * allocate once the pool has warmed up. Buffers may be released from a
+ * different thread than the one that acquired them.
+ *
+ * The number of buffers it holds on to can be raised and lowered while it
+ * is in use, as the Receiver does for every stream that comes and goes.
+ */
+class BufferPool {
+
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger held = new AtomicInteger();
+    private final AtomicInteger limit = new AtomicInteger();
+    private final int bufferSize;
+
+    /**
+     * @param bufferSize Capacity of every buffer, big enough for a whole packet
+     * @param count Number of buffers to allocate up front, and the most the pool will hold on to
+     */
+    BufferPool(int bufferSize, int count){
+        this.bufferSize = bufferSize;
+        grow(count);
+    }
+
+    public int getBufferSize() { return bufferSize; }
+
+    /**
+     * Allocates count more buffers up front and holds on to that many more from now on
+     */
+    public void grow(int count){
+        limit.addAndGet(count);
+        for (int i = 0; i < count; i++) release(ByteBuffer.allocateDirect(bufferSize));
+    }
+
+    /**
+     * Holds on to count fewer buffers, the ones over the limit are left for the GC as they come back
+     */
+    public void shrink(int count){
+        limit.addAndGet(-count);
+        while (held.get() > limit.get() && free.poll() != null) held.decrementAndGet();
+    }
+
+    /**
+     * @return a cleared buffer, a new one is allocated only if the pool has run dry
+     */
+    public ByteBuffer acquire(){
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) buffer = ByteBuffer.allocateDirect(bufferSize);
+        else held.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool, buffers allocated after it ran dry are left for the GC once it is full again
+     */
+    public void release(ByteBuffer buffer){
+        if (buffer == null) return;
+        if (held.incrementAndGet() <= limit.get()) free.offer(buffer);
+        else held.decrementAndGet();
+    }
+}
@@ -0,0 +1,49 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * ChainedSource reads one source after another as though they were one,
+ * which is how a resumed transfer steps over the runs of packets the
+ * Receiver already has. Every source but the last has to end on a packet
+ * boundary, so no payload straddles two of them.
+ */
+class ChainedSource implements PayloadSource {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final List<PayloadSource> sources;
+    private final Iterator<PayloadSource> next;
+    private final Closeable shared;
+    private PayloadSource current;
+
+    /**
+     * @param shared Whatever the sources read from, closed along with them
+     */
+    ChainedSource(List<PayloadSource> sources, Closeable shared){
+        this.sources = sources;
+        this.shared = shared;
+        next = sources.iterator();
+        current = next.hasNext() ? next.next() : null;
+    }
+
+    @Override
+    public ByteBuffer next(int length) throws IOException {
+        while (current != null){
+            ByteBuffer buffer = current.next(length);
+            if (buffer.hasRemaining() || !next.hasNext()) return buffer;
+            current = next.next();
+        }
+        return EMPTY;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (PayloadSource source: sources) source.close();
+        shared.close();
+    }
+}
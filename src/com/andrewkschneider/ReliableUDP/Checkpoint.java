@@ -0,0 +1,129 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Checkpoint records which packets of a file the Receiver has written, in a
+ * file of its own next to it, so a transfer cut short by either side dying
+ * can carry on from where it got to rather than start again. While the
+ * transfer runs the packets are kept in a bitmap, and saved as the runs of
+ * indexes it holds, so a file that is mostly in takes a few bytes however
+ * big it is.
+ *
+ * A save goes to a temporary file that is then moved over the last one, so
+ * dying halfway through one leaves the checkpoint before it whole. Once the
+ * transfer is under way only the writer thread of its FileSink touches it.
+ */
+class Checkpoint {
+
+    private static final int MAGIC = 0x52554450;
+
+    private final Path path;
+    private final int transferId;
+    private final int mss;
+    private final BitSet received = new BitSet();
+    private boolean dirty = false;
+
+    /**
+     * Starts an empty checkpoint for a file
+     * @param file File the transfer is written to
+     */
+    Checkpoint(Path file, int transferId, int mss){
+        path = pathOf(file);
+        this.transferId = transferId;
+        this.mss = mss;
+    }
+
+    /**
+     * Reads back the checkpoint kept for a file, if it is one the transfer can carry on from
+     * @param mss Largest packet size the transfer could go on with
+     * @return the saved checkpoint, null if there is none, it belongs to another transfer, its
+     * packets are bigger than mss or the file itself has gone
+     */
+    static Checkpoint load(Path file, int transferId, int mss){
+        Checkpoint checkpoint = null;
+        if (!Files.isRegularFile(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(pathOf(file))))){
+            if (in.readInt() != MAGIC || in.readInt() != transferId) return null;
+            checkpoint = new Checkpoint(file, transferId, in.readInt());
+            for (int runs = in.readInt(); runs > 0; runs--) checkpoint.received.set(in.readInt(), in.readInt());
+        } catch (IOException | IndexOutOfBoundsException e) {
+            // missing or cut short, either way there's nothing to carry on from
+            return null;
+        }
+        return checkpoint.mss <= mss ? checkpoint : null;
+    }
+
+    private static Path pathOf(Path file){
+        return file.resolveSibling(file.getFileName() + ".ckpt");
+    }
+
+    int getMss() { return mss; }
+
+    /**
+     * @return true if no packet has been written yet
+     */
+    boolean isEmpty() { return received.isEmpty(); }
+
+    /**
+     * @return true if packets have been written since the last save
+     */
+    boolean isDirty() { return dirty; }
+
+    /**
+     * Records a packet as written to the file
+     */
+    void mark(int index){
+        received.set(index);
+        dirty = true;
+    }
+
+    /**
+     * @return the packets written so far
+     */
+    ReceivedRanges ranges(){
+        List<int[]> runs = new ArrayList<>();
+        for (int start = received.nextSetBit(0); start >= 0; start = received.nextSetBit(received.nextClearBit(start))){
+            runs.add(new int[]{ start, received.nextClearBit(start) });
+        }
+        return new ReceivedRanges(runs);
+    }
+
+    /**
+     * Saves the packets written so far. Whatever they were written to the file with should
+     * have been forced to the disk first
+     */
+    void save() throws IOException {
+        ReceivedRanges ranges = ranges();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))){
+            out.writeInt(MAGIC);
+            out.writeInt(transferId);
+            out.writeInt(mss);
+            out.writeInt(ranges.size());
+            for (int i = 0; i < ranges.size(); i++){
+                out.writeInt(ranges.start(i));
+                out.writeInt(ranges.end(i));
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    /**
+     * Removes the saved checkpoint, once the whole file is in
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,37 @@
+package com.andrewkschneider.ReliableUDP;
+
+/**
+ * CongestionController decides how many packets the Sender may have in
+ * flight. The Sender never goes past the smaller of this window and the
+ * window size the Receiver was started with.
+ */
+public interface CongestionController {
+
+    /**
+     * @return current congestion window, in packets
+     */
+    int getWindow();
+
+    /**
+     * Called when a cumulative ack slides the window forward
+     * @param ackno Next seqno the Receiver expects
+     * @param acked Number of packets newly acked
+     * @param srtt Smoothed round trip time in ms, negative if there is no sample yet
+     * @return true if the ack only covers part of what was in flight when fast recovery
+     * started, and the packet now at the base of the window should be retransmitted too
+     */
+    boolean onAck(int ackno, int acked, double srtt);
+
+    /**
+     * Called for every duplicate ack
+     * @param next Seqno the next new packet will carry, fast recovery lasts until
+     * everything below it has been acked
+     * @return true if the packet at the base of the window should be fast retransmitted
+     */
+    boolean onDuplicateAck(int next);
+
+    /**
+     * Called when a retransmission timer expires
+     */
+    void onTimeout();
+}
@@ -0,0 +1,54 @@
+package com.andrewkschneider.ReliableUDP;
+
+/**
+ * CubicController grows the window along the cubic curve from RFC 8312,
+ * centred on the window size at the last loss, so it climbs back quickly
+ * after a loss and probes cautiously around the old maximum. It never grows
+ * slower than Reno would over the same time.
+ */
+public class CubicController extends AbstractCongestionController {
+
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+
+    private double wMax = 0;
+    private double k = 0;
+    private long epochStart = -1;
+
+    public CubicController(int initialWindow, int initialThreshold){
+        super(initialWindow, initialThreshold);
+    }
+
+    @Override
+    protected void congestionAvoidance(int acked, double srtt){
+        long now = System.nanoTime();
+        if (epochStart < 0){
+            epochStart = now;
+            if (wMax < cwnd){
+                wMax = cwnd;
+                k = 0;
+            }
+            else k = Math.cbrt(wMax * (1 - BETA) / C);
+        }
+
+        // time is measured in seconds, one RTT ahead, as the RFC does
+        double rtt = srtt > 0 ? srtt / 1000 : 0;
+        double t = (now - epochStart) / 1e9;
+        double target = C * Math.pow(t + rtt - k, 3) + wMax;
+
+        // Reno-equivalent window for the same elapsed time
+        double reno = rtt > 0 ? wMax * BETA + 3 * (1 - BETA) / (1 + BETA) * t / rtt : 0;
+
+        if (target < reno) target = reno;
+        if (target > cwnd) cwnd += (target - cwnd) / cwnd * acked;
+        else cwnd += 0.01 * acked / cwnd;
+    }
+
+    @Override
+    protected double reduce(){
+        // fast convergence, give up more room if the previous maximum wasn't reached
+        wMax = cwnd < wMax ? cwnd * (1 + BETA) / 2 : cwnd;
+        epochStart = -1;
+        return cwnd * BETA;
+    }
+}
@@ -9,6 +9,9 @@ import java.nio.ByteBuffer;
  * constructors for both data packets and ack packets,
  * and a method for updating the checksum
  *
+ * The checksum is computed over the whole packet when it is encoded and
+ * checked when one is parsed, see PacketChecksum for the two kinds.
+ *
  * Created by Andrew Schneider on 6/29/2017.
  */
 public class CustomPacket {
@@ -16,18 +19,34 @@ public class CustomPacket {
     // Data needed for the protocol
     private short cksum;
     private short len;
+    private int connId;
     private int ackno;
     private int seqno;
+    private int sack;
+    private boolean ack;
+    private boolean valid = true;
+    private PacketChecksum checksum = PacketChecksum.CRC32C;
     private byte[] data;
 
     // public accessor methods
     public short getCksum() {return cksum; }
+    public int getConnId() { return connId; }
     public int getAckno() { return ackno; }
     public int getSeqno() {return seqno; }
+    public int getSack() { return sack; }
     public byte[] getData() { return data; }
+    public PacketChecksum getChecksum() { return checksum; }
+
+    /**
+     * @return false if the packet was parsed and its checksum didn't match or its len is too short for
+     * the fields it should carry, always true for one built locally
+     */
+    public boolean isValid() { return valid; }
 
     // public mutator
     public void setCksum(short cksum){ this.cksum = cksum; }
+    public void setConnId(int connId){ this.connId = connId; }
+    public void setChecksum(PacketChecksum checksum){ this.checksum = checksum; }
 
     // Don't allow this method to be instantiated without values to populate fields
     private CustomPacket(){}
@@ -36,12 +55,12 @@ public class CustomPacket {
      * Constructor called to create data-carrying packets
      * @param payload Data to be transmitted
      * @param packetno Sequence number of data
-     * @param cksum Checksum of data (in this case 0=good, 1=bad)
+     * @param cksum Checksum field, replaced by the real checksum when the packet is encoded
      */
     public CustomPacket(byte[] payload, int packetno, short cksum){
 
         this.cksum = cksum;
-        len = (short)(12 + payload.length);
+        len = (short)(PacketView.HEADER_LENGTH + payload.length);
         ackno = packetno;
         seqno = packetno;
         data = payload;
@@ -50,12 +69,27 @@ public class CustomPacket {
     /**
      * Constructor called to create ack packets
      * @param ackno Sequence number being acked
-     * @param cksum Checksum of data (in this case 0=good, 1=bad)
+     * @param cksum Checksum field, replaced by the real checksum when the packet is encoded
      */
     public CustomPacket(int ackno, short cksum){
         this.cksum = cksum;
         this.ackno = ackno;
-        len = 8;
+        ack = true;
+        len = PacketView.ACK_LENGTH;
+    }
+
+    /**
+     * Constructor called to create selective ack packets
+     * @param ackno Next sequence number expected (everything below it has been received)
+     * @param sack Bitmap of segments received past ackno, bit i set means ackno + 1 + i arrived
+     * @param cksum Checksum field, replaced by the real checksum when the packet is encoded
+     */
+    public CustomPacket(int ackno, int sack, short cksum){
+        this.cksum = cksum;
+        this.ackno = ackno;
+        this.sack = sack;
+        ack = true;
+        len = PacketView.SACK_LENGTH;
     }
 
     /**
@@ -65,12 +99,18 @@ public class CustomPacket {
 
     public CustomPacket(byte[] packetIn){
         ByteBuffer buffer = ByteBuffer.wrap(packetIn);
+        valid = PacketChecksum.verify(buffer);
+        if (valid) checksum = PacketChecksum.of(buffer);
         cksum = buffer.getShort();
         len = buffer.getShort();
+        connId = buffer.getInt();
         ackno = buffer.getInt();
-        if (len != 8){
+        // a corrupted len can't be trusted to size the payload, and a checksum only vouches for the
+        // len bytes it covers, so a len too short for a header is treated like a checksum that failed
+        valid &= len == PacketView.ACK_LENGTH || len >= PacketView.HEADER_LENGTH;
+        if (valid && len != PacketView.ACK_LENGTH){
             seqno = buffer.getInt();
-            data = new byte[len - 12];
+            data = new byte[len - PacketView.HEADER_LENGTH];
             buffer.get(data, 0, data.length);
         }
     }
@@ -81,20 +121,48 @@ public class CustomPacket {
      */
     public DatagramPacket getPacket(InetAddress recieverAddr, int port){
 
-        ByteBuffer buffer = ByteBuffer.allocate(len);
+        ByteBuffer buffer = ByteBuffer.allocate(len + checksum.trailerLength());
         buffer.putShort(cksum);
         buffer.putShort(len);
+        buffer.putInt(connId);
         buffer.putInt(ackno);
-        if (len != 8) {
+        if (ack) {
+            if (len != PacketView.ACK_LENGTH) buffer.putInt(sack);
+        }
+        else if (len != PacketView.ACK_LENGTH) {
             buffer.putInt(seqno);
             buffer.put(data);
         }
 
-        return new DatagramPacket(buffer.array(), len, recieverAddr, port);
+        buffer.flip();
+        checksum.seal(buffer);
+        cksum = buffer.getShort(PacketView.CKSUM);
+        return new DatagramPacket(buffer.array(), buffer.limit(), recieverAddr, port);
     }
 
     public static CustomPacket parsePacket(byte[] packetIn){ return new CustomPacket(packetIn);  }
 
+    /**
+     * Parses an ack packet. Plain and selective acks share a layout with data
+     * packets up to ackno, so the Sender has to ask for an ack explicitly
+     * @param packetIn Data to be parsed
+     * @return ack packet, with the SACK bitmap filled in if one was sent
+     */
+    public static CustomPacket parseAck(byte[] packetIn){
+        ByteBuffer buffer = ByteBuffer.wrap(packetIn);
+        CustomPacket packet = new CustomPacket();
+        packet.valid = PacketChecksum.verify(buffer);
+        if (packet.valid) packet.checksum = PacketChecksum.of(buffer);
+        packet.ack = true;
+        packet.cksum = buffer.getShort();
+        packet.len = buffer.getShort();
+        packet.connId = buffer.getInt();
+        packet.ackno = buffer.getInt();
+        packet.valid &= packet.len == PacketView.ACK_LENGTH || packet.len >= PacketView.SACK_LENGTH;
+        if (packet.valid && packet.len != PacketView.ACK_LENGTH) packet.sack = buffer.getInt();
+        return packet;
+    }
+
     public static void main(String[] args){
         CustomPacket packet = new CustomPacket();
     }
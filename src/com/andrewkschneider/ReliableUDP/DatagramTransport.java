@@ -0,0 +1,110 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * DatagramTransport sends and receives whole packets held in ByteBuffers over
+ * a non-blocking DatagramChannel. With direct buffers the payload goes
+ * straight between the buffer and the kernel, and nothing is allocated per
+ * packet. A Selector provides the receive timeout that
+ * DatagramSocket.setSoTimeout used to.
+ */
+class DatagramTransport implements Transport {
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+
+    /**
+     * @param port Local port to bind to, 0 for any free port
+     */
+    DatagramTransport(int port) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    public DatagramChannel getChannel() { return channel; }
+
+    /**
+     * Sends the bytes between the buffer's position and limit as one datagram,
+     * leaving the position where it was so the packet can be sent again
+     */
+    @Override
+    public void send(ByteBuffer packet, SocketAddress target) throws IOException {
+        int position = packet.position();
+        channel.send(packet, target);
+        packet.position(position);
+    }
+
+    /**
+     * Receives one datagram into buffer, which is flipped so the packet sits between position and limit
+     * @param timeout Time in ms to wait, 0 to wait forever
+     * @return address the datagram came from, or null if the timeout ran out first
+     */
+    @Override
+    public SocketAddress receive(ByteBuffer buffer, long timeout) throws IOException {
+        buffer.clear();
+        SocketAddress from = channel.receive(buffer);
+        try {
+            while (from == null){
+                if (selector.select(timeout) == 0 && timeout > 0) return null;
+                selector.selectedKeys().clear();
+                from = channel.receive(buffer);
+            }
+        } catch (ClosedSelectorException e) {
+            // closed from another thread while waiting
+            throw new ClosedChannelException();
+        }
+        buffer.flip();
+        return from;
+    }
+
+    /**
+     * Receives one datagram into buffer if there is one waiting, without blocking
+     * @return address the datagram came from, or null if nothing was waiting
+     */
+    @Override
+    public SocketAddress poll(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        SocketAddress from = channel.receive(buffer);
+        buffer.flip();
+        return from;
+    }
+
+    /**
+     * Grows the kernel's send buffer to at least bytes, leaving it alone if it is already that big
+     * @return size the buffer ended up at, the kernel caps it at its own limit
+     */
+    @Override
+    public int growSendBuffer(int bytes) throws IOException {
+        if (channel.getOption(StandardSocketOptions.SO_SNDBUF) < bytes) channel.setOption(StandardSocketOptions.SO_SNDBUF, bytes);
+        return channel.getOption(StandardSocketOptions.SO_SNDBUF);
+    }
+
+    /**
+     * Grows the kernel's receive buffer to at least bytes, leaving it alone if it is already that big
+     * @return size the buffer ended up at, the kernel caps it at its own limit
+     */
+    @Override
+    public int growReceiveBuffer(int bytes) throws IOException {
+        if (channel.getOption(StandardSocketOptions.SO_RCVBUF) < bytes) channel.setOption(StandardSocketOptions.SO_RCVBUF, bytes);
+        return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        channel.close();
+    }
+}
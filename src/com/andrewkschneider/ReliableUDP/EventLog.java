@@ -0,0 +1,114 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * EventLog takes log events off the send and receive loops. Events go onto a
+ * bounded queue and a writer thread formats and prints them, so the loops
+ * never block on the console or spend time building strings. If the writer
+ * falls behind, events that don't fit are counted and dropped rather than
+ * holding up the protocol.
+ *
+ * Per-packet events are sampled, one in every sampleRate is kept and 0 turns
+ * them off. Less frequent ones like timeouts and transfers opening or closing
+ * are always kept.
+ */
+class EventLog implements Closeable {
+
+    private static final Event END = new Event(0, null, 0, 0, null);
+
+    private final ArrayBlockingQueue<Event> queue;
+    private final int sampleRate;
+    private final PrintStream out;
+    private final long start = System.nanoTime();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+
+    /**
+     * @param sampleRate Keep one in every sampleRate packet events, 0 to keep none
+     * @param capacity Number of events that can be waiting on the writer
+     * @param out Where events are printed
+     */
+    EventLog(int sampleRate, int capacity, PrintStream out){
+        this.sampleRate = sampleRate;
+        this.out = out;
+        queue = new ArrayBlockingQueue<>(capacity);
+        writer = new Thread(this::write, "EventLog");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Logs a per-packet event, if it is sampled
+     */
+    public void sample(String type, int connId, int seqno, String condition){
+        if (sampleRate <= 0) return;
+        if (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0) event(type, connId, seqno, condition);
+    }
+
+    /**
+     * Logs an event that is always kept
+     */
+    public void event(String type, int connId, int seqno, String condition){
+        offer(new Event(System.nanoTime() - start, type, connId, seqno, condition));
+    }
+
+    /**
+     * Logs a line of free text that is always kept
+     */
+    public void message(String text){
+        offer(new Event(System.nanoTime() - start, null, 0, 0, text));
+    }
+
+    public long getDropped() { return dropped.sum(); }
+
+    private void offer(Event event){
+        if (!queue.offer(event)) dropped.increment();
+    }
+
+    private void write(){
+        try {
+            for (Event event = queue.take(); event != END; event = queue.take()){
+                if (event.type == null) out.println(String.format("t=%.3fms %s", event.time / 1e6, event.detail));
+                else out.println(String.format("t=%.3fms event=%s conn=%08x seqno=%d cond=%s", event.time / 1e6, event.type, event.connId, event.seqno, event.detail));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Prints whatever is still queued and stops the writer
+     */
+    @Override
+    public void close(){
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (getDropped() > 0) out.println(String.format("%d log events dropped, the writer couldn't keep up", getDropped()));
+        out.flush();
+    }
+
+    private static class Event {
+        private final long time;
+        private final String type;
+        private final int connId;
+        private final int seqno;
+        private final String detail;
+
+        Event(long time, String type, int connId, int seqno, String detail){
+            this.time = time;
+            this.type = type;
+            this.connId = connId;
+            this.seqno = seqno;
+            this.detail = detail;
+        }
+    }
+}
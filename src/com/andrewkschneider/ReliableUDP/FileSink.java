@@ -0,0 +1,162 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+
+/**
+ * FileSink writes received payloads to disk byte for byte on its own writer
+ * thread. Every payload goes to offset index * packetSize through a
+ * positional FileChannel write, so packets can be handed over in whatever
+ * order they arrive and the receive loop never waits on the disk unless the
+ * queue between the two fills up.
+ *
+ * Each packet buffer is returned to the pool once it has been written.
+ * Compressed payloads are inflated on the writer thread too, each on its
+ * own, so the receive loop handles them like any other.
+ *
+ * With a checkpoint, the writer thread marks every packet in it once it is
+ * written, and saves it about once every CHECKPOINT_INTERVAL ms after
+ * forcing the file to the disk, so the checkpoint never claims a packet the
+ * file might not have. A transfer that is given up on saves it one last
+ * time, one that finishes deletes it.
+ */
+class FileSink implements PacketSink {
+
+    // handed to the writer thread to tell it nothing else is coming
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private static final long CHECKPOINT_INTERVAL = 1000;
+
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> queue;
+    private final BufferPool pool;
+    private final Checkpoint checkpoint;
+    private final int packetSize;
+    private final Thread writer;
+    private volatile IOException failure;
+    private volatile boolean closed = false;
+
+    /**
+     * @param path File to write, truncated if it already exists unless the checkpoint has part of it
+     * @param packetSize Payload size of every packet but the last
+     * @param queueLength Number of packets that can be waiting on the disk before write() blocks
+     * @param pool Pool written buffers are returned to
+     * @param checkpoint Checkpoint to keep of the packets written, null for none
+     */
+    FileSink(Path path, int packetSize, int queueLength, BufferPool pool, Checkpoint checkpoint) throws IOException {
+        channel = checkpoint != null && !checkpoint.isEmpty()
+                ? FileChannel.open(path, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        queue = new ArrayBlockingQueue<>(queueLength);
+        this.pool = pool;
+        this.checkpoint = checkpoint;
+        this.packetSize = packetSize;
+        writer = new Thread(this::drain, "FileSink-" + path.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void write(ByteBuffer packet) throws IOException {
+        if (closed) throw new IOException("Sink already closed");
+        try {
+            // keep checking on the writer so a failed disk doesn't leave the receive loop blocked here
+            while (!queue.offer(packet, 100, TimeUnit.MILLISECONDS)){
+                if (failure != null) throw failure;
+            }
+            if (failure != null) throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted queueing a write", e);
+        }
+    }
+
+    private void drain(){
+        PacketView view = new PacketView();
+        Inflater inflater = new Inflater(true);
+        ByteBuffer inflated = ByteBuffer.allocateDirect(packetSize);
+        long nextCheckpoint = System.currentTimeMillis() + CHECKPOINT_INTERVAL;
+        try {
+            while (true){
+                // with a checkpoint to keep, the wait for a packet is cut short when the next save is due
+                ByteBuffer packet = checkpoint == null ? queue.take() : queue.poll(Math.max(1, nextCheckpoint - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (packet == END) break;
+                if (packet != null){
+                    view.wrap(packet);
+                    int index = view.getIndex();
+                    long position = (long)index * packetSize;
+                    ByteBuffer payload = view.isCompressed() ? PayloadCompressor.inflate(inflater, view.payload(), inflated) : view.payload();
+                    while (payload.hasRemaining()) position += channel.write(payload, position);
+                    pool.release(packet);
+                    if (checkpoint != null) checkpoint.mark(index);
+                }
+                if (checkpoint != null && System.currentTimeMillis() >= nextCheckpoint){
+                    checkpoint();
+                    nextCheckpoint = System.currentTimeMillis() + CHECKPOINT_INTERVAL;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new IOException("Writer thread interrupted", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Saves the checkpoint if anything has been written since the last save, once the
+     * file has caught up on the disk
+     */
+    private void checkpoint() throws IOException {
+        if (!checkpoint.isDirty()) return;
+        channel.force(false);
+        checkpoint.save();
+    }
+
+    /**
+     * Waits for every queued write to reach the file, then closes it. The whole file is
+     * in, so its checkpoint goes
+     */
+    @Override
+    public void close() throws IOException {
+        finish(true);
+    }
+
+    /**
+     * Keeps whatever made it to the file, and saves the checkpoint so the transfer can be resumed
+     */
+    @Override
+    public void abort(){
+        try {
+            finish(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void finish(boolean complete) throws IOException {
+        if (closed && !channel.isOpen()) return;
+        closed = true;
+        try {
+            if (writer.isAlive()) queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (checkpoint != null && complete && failure == null) checkpoint.delete();
+            else if (checkpoint != null) checkpoint();
+        } finally {
+            channel.close();
+        }
+        if (failure != null) throw failure;
+    }
+}
@@ -0,0 +1,65 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram counts non-negative values, such as latencies in microseconds, in
+ * log-linear buckets: every power of two is split into eight equal buckets,
+ * so a percentile is never more than 12.5% off while the whole range of a
+ * long fits in a few hundred counters. Values can be recorded from any
+ * number of threads without locking.
+ */
+class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value){
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() { return count.sum(); }
+    public long getMax() { return max.get(); }
+    public double getMean() { return getCount() == 0 ? 0 : (double)sum.sum() / getCount(); }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return value at or below which percentile percent of the recorded values fall, rounded up to
+     * the top of its bucket, 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile){
+        long total = getCount();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++){
+            seen += counts.get(i);
+            if (seen >= rank) return i + 1 == counts.length() ? getMax() : Math.min(getMax(), lowerBound(i + 1) - 1);
+        }
+        return getMax();
+    }
+
+    private static int index(long value){
+        if (value < SUB_BUCKETS) return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int index){
+        if (index < SUB_BUCKETS) return index;
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        return (long)(SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+}
@@ -0,0 +1,92 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ImpairedTransport puts a LinkModel in front of the sending side of
+ * another transport, which is how the Sender's and Receiver's drop rate is
+ * simulated over a real socket. Lost packets are never sent and corrupted
+ * ones go out with a bit flipped in a copy, so the caller's buffer is left
+ * alone for a retransmission. A model that delays packets has copies sent
+ * later from a timer thread, which only gets started if one is needed.
+ * Receiving goes straight to the transport underneath.
+ */
+class ImpairedTransport implements Transport {
+
+    private final Transport transport;
+    private final LinkModel.Link link;
+    private final Metrics metrics;
+    private final ScheduledExecutorService timer;
+    private final long[] arrivals = new long[2];
+    private final int[] bits = new int[2];
+    private volatile IOException failure;
+
+    /**
+     * @param metrics Metrics to count dropped and corrupted packets in
+     */
+    ImpairedTransport(Transport transport, LinkModel model, long seed, Metrics metrics){
+        this.transport = transport;
+        this.link = model.newLink(seed);
+        this.metrics = metrics;
+        timer = model.delays() ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ImpairedTransport");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    @Override
+    public synchronized void send(ByteBuffer packet, SocketAddress target) throws IOException {
+        if (failure != null) throw failure;
+        long now = System.nanoTime();
+        int copies = link.transmit(packet.remaining(), now, arrivals, bits);
+        if (copies == LinkModel.Link.LOST) metrics.packetsDropped.increment();
+
+        for (int i = 0; i < copies; i++){
+            ByteBuffer copy = packet;
+            if (bits[i] >= 0 || arrivals[i] > now){
+                copy = ByteBuffer.allocate(packet.remaining()).put(packet.duplicate()).flip();
+            }
+            if (bits[i] >= 0){
+                copy.put(bits[i] / 8, (byte)(copy.get(bits[i] / 8) ^ (1 << (bits[i] % 8))));
+                metrics.packetsCorrupted.increment();
+            }
+            if (arrivals[i] <= now) transport.send(copy, target);
+            else {
+                ByteBuffer delayed = copy;
+                timer.schedule(() -> sendLater(delayed, target), arrivals[i] - now, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void sendLater(ByteBuffer packet, SocketAddress target){
+        try {
+            transport.send(packet, target);
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    @Override
+    public SocketAddress receive(ByteBuffer buffer, long timeout) throws IOException { return transport.receive(buffer, timeout); }
+
+    @Override
+    public SocketAddress poll(ByteBuffer buffer) throws IOException { return transport.poll(buffer); }
+
+    @Override
+    public int growSendBuffer(int bytes) throws IOException { return transport.growSendBuffer(bytes); }
+
+    @Override
+    public int growReceiveBuffer(int bytes) throws IOException { return transport.growReceiveBuffer(bytes); }
+
+    @Override
+    public void close() throws IOException {
+        if (timer != null) timer.shutdownNow();
+        transport.close();
+    }
+}
@@ -0,0 +1,153 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.util.Random;
+
+/**
+ * LinkModel describes how a network path mistreats the datagrams sent over
+ * it: loss, either independent or in Gilbert-Elliott bursts, bit errors,
+ * duplication, reordering, latency with jitter, and a bandwidth cap with a
+ * bounded queue in front of it. Nothing is applied by the model itself,
+ * each direction of traffic gets a Link of its own from newLink(), which
+ * holds the state the model needs and draws every decision from a Random
+ * with a fixed seed, so the same traffic gets the same treatment every run.
+ *
+ * Gilbert-Elliott switches between a good and a bad state before every
+ * packet, going bad with probability p and good again with probability r,
+ * and loses packets at the plain loss rate in the good state and at the
+ * burst loss rate in the bad one. Bursts average 1/r packets.
+ */
+public class LinkModel {
+
+    private double loss = 0;
+    private double burstEnter = 0;
+    private double burstExit = 1;
+    private double burstLoss = 1;
+    private double corruption = 0;
+    private double duplication = 0;
+    private double reordering = 0;
+    private long reorderDelay = 0;
+    private long delay = 0;
+    private long jitter = 0;
+    private long bandwidth = 0;
+    private long queueLimit = Long.MAX_VALUE;
+
+    /**
+     * @param rate Chance of losing a packet, or of losing one in the good state with bursts on
+     */
+    public void setLoss(double rate) { loss = rate; }
+
+    /**
+     * Turns on Gilbert-Elliott burst loss
+     * @param p Chance of going from the good state to the bad one before a packet
+     * @param r Chance of going back from the bad state to the good one
+     * @param rate Chance of losing a packet in the bad state
+     */
+    public void setBurstLoss(double p, double r, double rate){
+        burstEnter = p;
+        burstExit = r;
+        burstLoss = rate;
+    }
+
+    /**
+     * @param rate Chance of flipping one bit of a packet that isn't lost
+     */
+    public void setCorruption(double rate) { corruption = rate; }
+
+    /**
+     * @param rate Chance of a packet arriving twice
+     */
+    public void setDuplication(double rate) { duplication = rate; }
+
+    /**
+     * @param rate Chance of a packet being held back so later ones overtake it
+     * @param ms How long it is held back for
+     */
+    public void setReordering(double rate, double ms){
+        reordering = rate;
+        reorderDelay = (long)(ms * 1e6);
+    }
+
+    /**
+     * @param ms One way latency
+     * @param jitter Most a packet's latency is off from ms either way, spread evenly
+     */
+    public void setDelay(double ms, double jitter){
+        delay = (long)(ms * 1e6);
+        this.jitter = (long)(jitter * 1e6);
+    }
+
+    /**
+     * @param bytesPerSecond Rate packets leave at, 0 for no cap
+     * @param queueLimit Bytes that can be waiting for the link before anything more is dropped
+     */
+    public void setBandwidth(long bytesPerSecond, long queueLimit){
+        bandwidth = bytesPerSecond;
+        this.queueLimit = queueLimit;
+    }
+
+    /**
+     * @return true if anything sent over the model can arrive later than it was sent
+     */
+    boolean delays() { return delay > 0 || jitter > 0 || reordering > 0 || bandwidth > 0; }
+
+    /**
+     * The old all-or-nothing simulation, packets dropped or corrupted half the time each at rate
+     */
+    static LinkModel dropCorrupt(double rate){
+        LinkModel model = new LinkModel();
+        model.setLoss(rate / 2);
+        model.setCorruption(rate / 2 / (1 - rate / 2));
+        return model;
+    }
+
+    /**
+     * @param seed Seed for every decision the link makes
+     */
+    Link newLink(long seed) { return new Link(seed); }
+
+    /**
+     * One direction of traffic over the model. A link isn't thread safe, each one belongs to a single sender.
+     */
+    class Link {
+        static final int LOST = 0;
+
+        private final Random rng;
+        private boolean bad = false;
+        private long busyUntil = 0;
+
+        private Link(long seed){
+            rng = new Random(seed);
+        }
+
+        /**
+         * Decides what happens to one packet
+         * @param length Size of the packet in bytes
+         * @param now Time it is sent, from System.nanoTime()
+         * @param arrivals Filled with the time each copy that gets through arrives
+         * @param bits Filled with the bit to flip in each copy, -1 for none
+         * @return number of copies that get through, LOST, 1 or 2
+         */
+        int transmit(int length, long now, long[] arrivals, int[] bits){
+            if (burstEnter > 0) bad = bad ? rng.nextDouble() >= burstExit : rng.nextDouble() < burstEnter;
+            if (rng.nextDouble() < (bad ? burstLoss : loss)) return LOST;
+
+            // a full queue in front of the link drops the packet without it taking up any of the link
+            long departure = now;
+            if (bandwidth > 0){
+                long start = Math.max(now, busyUntil);
+                if ((start - now) * bandwidth / 1_000_000_000L > queueLimit) return LOST;
+                busyUntil = start + length * 1_000_000_000L / bandwidth;
+                departure = busyUntil;
+            }
+
+            int copies = rng.nextDouble() < duplication ? 2 : 1;
+            for (int i = 0; i < copies; i++){
+                long latency = delay + (jitter > 0 ? (long)((2 * rng.nextDouble() - 1) * jitter) : 0);
+                if (rng.nextDouble() < reordering) latency += reorderDelay;
+                arrivals[i] = departure + Math.max(0, latency);
+                bits[i] = rng.nextDouble() < corruption ? rng.nextInt(length * 8) : -1;
+            }
+            return copies;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * MappedFileSource reads a regular file through a series of read only
+ * mappings, each CHUNK_SIZE bytes at most. Only the mapping currently being
+ * sliced is referenced, so memory use doesn't grow with the file, and the
+ * first packet can go out as soon as the first chunk is mapped.
+ *
+ * A source can also cover just one byte range of the file, which is how the
+ * Sender splits a file across parallel streams.
+ */
+class MappedFileSource implements PayloadSource {
+
+    private static final long CHUNK_SIZE = 64L << 20;
+
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+    private MappedByteBuffer mapping;
+
+    // file offset just past the end of the current mapping
+    private long mappedTo;
+
+    MappedFileSource(FileChannel channel) throws IOException {
+        this(channel, 0, channel.size());
+    }
+
+    /**
+     * @param start Offset of the first byte to read
+     * @param end Offset just past the last byte to read
+     */
+    MappedFileSource(FileChannel channel, long start, long end){
+        this.channel = channel;
+        this.start = start;
+        this.end = end;
+        mappedTo = start;
+    }
+
+    @Override
+    public ByteBuffer next(int length) throws IOException {
+        // remap once a payload would run off the end of the current chunk, starting at the first unread byte
+        if (mapping == null || (mapping.remaining() < length && mappedTo < end)){
+            long offset = mapping == null ? start : mappedTo - mapping.remaining();
+            long chunk = Math.min(CHUNK_SIZE, end - offset);
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, offset, chunk);
+            mappedTo = offset + chunk;
+        }
+        return mapping;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapping = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,114 @@
+package com.andrewkschneider.ReliableUDP;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics keeps the counters and latency histograms of one Sender or
+ * Receiver. The loops only ever bump counters, which is cheap from any
+ * number of threads, and anything that wants the numbers pulls them, either
+ * through the getters or over JMX once the metrics are registered.
+ *
+ * Dropped and corrupted count what the simulator did on the way out, bad
+ * checksums count what actually failed verification on the way in.
+ */
+public class Metrics implements MetricsMXBean {
+
+    private static final String DOMAIN = "com.andrewkschneider.ReliableUDP";
+
+    final LongAdder packetsSent = new LongAdder();
+    final LongAdder retransmissions = new LongAdder();
+    final LongAdder duplicateAcks = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final LongAdder bytesAcked = new LongAdder();
+    final LongAdder paritySent = new LongAdder();
+    final LongAdder bytesSaved = new LongAdder();
+    final LongAdder packetsReceived = new LongAdder();
+    final LongAdder duplicatePackets = new LongAdder();
+    final LongAdder outOfWindow = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder acksSent = new LongAdder();
+    final LongAdder packetsRecovered = new LongAdder();
+    final LongAdder packetsDropped = new LongAdder();
+    final LongAdder packetsCorrupted = new LongAdder();
+    final LongAdder badChecksums = new LongAdder();
+
+    // both in microseconds, RTT from segments sent once, ack latency from first send to cumulative ack
+    final Histogram rtt = new Histogram();
+    final Histogram ackLatency = new Histogram();
+
+    private ObjectName name;
+
+    @Override public long getPacketsSent() { return packetsSent.sum(); }
+    @Override public long getRetransmissions() { return retransmissions.sum(); }
+    @Override public long getDuplicateAcks() { return duplicateAcks.sum(); }
+    @Override public long getTimeouts() { return timeouts.sum(); }
+    @Override public long getBytesAcked() { return bytesAcked.sum(); }
+    @Override public long getParitySent() { return paritySent.sum(); }
+    @Override public long getBytesSaved() { return bytesSaved.sum(); }
+    @Override public long getPacketsReceived() { return packetsReceived.sum(); }
+    @Override public long getDuplicatePackets() { return duplicatePackets.sum(); }
+    @Override public long getOutOfWindow() { return outOfWindow.sum(); }
+    @Override public long getBytesReceived() { return bytesReceived.sum(); }
+    @Override public long getAcksSent() { return acksSent.sum(); }
+    @Override public long getPacketsRecovered() { return packetsRecovered.sum(); }
+    @Override public long getPacketsDropped() { return packetsDropped.sum(); }
+    @Override public long getPacketsCorrupted() { return packetsCorrupted.sum(); }
+    @Override public long getBadChecksums() { return badChecksums.sum(); }
+
+    @Override public double getRttMean() { return rtt.getMean() / 1e3; }
+    @Override public double getRttP50() { return rtt.getPercentile(50) / 1e3; }
+    @Override public double getRttP99() { return rtt.getPercentile(99) / 1e3; }
+    @Override public double getRttMax() { return rtt.getMax() / 1e3; }
+    @Override public double getAckLatencyMean() { return ackLatency.getMean() / 1e3; }
+    @Override public double getAckLatencyP50() { return ackLatency.getPercentile(50) / 1e3; }
+    @Override public double getAckLatencyP99() { return ackLatency.getPercentile(99) / 1e3; }
+    @Override public double getAckLatencyMax() { return ackLatency.getMax() / 1e3; }
+
+    /**
+     * Publishes the metrics on the platform MBean server, failing quietly since nothing depends on it
+     * @param properties Key properties telling this instance apart, e.g. type=Sender,id=1a2b3c
+     */
+    void register(String properties){
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":" + properties);
+            if (!server.isRegistered(objectName)){
+                server.registerMBean(this, objectName);
+                name = objectName;
+            }
+        } catch (JMException e) {
+            System.out.println("Unable to register metrics: " + e.getMessage());
+        }
+    }
+
+    void unregister(){
+        if (name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            System.out.println("Unable to unregister metrics: " + e.getMessage());
+        }
+        name = null;
+    }
+
+    /**
+     * @return one line summing up the Sender's side
+     */
+    String senderSummary(){
+        return String.format("sent=%d retransmitted=%d parity=%d saved=%d dropped=%d corrupted=%d badChecksums=%d dupAcks=%d timeouts=%d bytesAcked=%d rttP50=%.3fms rttP99=%.3fms rttMax=%.3fms ackLatencyP50=%.3fms ackLatencyP99=%.3fms ackLatencyMax=%.3fms",
+                getPacketsSent(), getRetransmissions(), getParitySent(), getBytesSaved(), getPacketsDropped(), getPacketsCorrupted(), getBadChecksums(), getDuplicateAcks(), getTimeouts(), getBytesAcked(),
+                getRttP50(), getRttP99(), getRttMax(), getAckLatencyP50(), getAckLatencyP99(), getAckLatencyMax());
+    }
+
+    /**
+     * @return one line summing up the Receiver's side
+     */
+    String receiverSummary(){
+        return String.format("received=%d recovered=%d duplicates=%d outOfWindow=%d badChecksums=%d bytesReceived=%d acksSent=%d dropped=%d corrupted=%d",
+                getPacketsReceived(), getPacketsRecovered(), getDuplicatePackets(), getOutOfWindow(), getBadChecksums(), getBytesReceived(), getAcksSent(), getPacketsDropped(), getPacketsCorrupted());
+    }
+}
@@ -0,0 +1,40 @@
+package com.andrewkschneider.ReliableUDP;
+
+/**
+ * Counters and latencies of a Sender or Receiver, as published over JMX.
+ * Each end only fills in the ones that apply to it, the rest stay at 0.
+ * Latencies are in ms.
+ */
+public interface MetricsMXBean {
+
+    // Sender
+    long getPacketsSent();
+    long getRetransmissions();
+    long getDuplicateAcks();
+    long getTimeouts();
+    long getBytesAcked();
+    long getParitySent();
+    long getBytesSaved();
+
+    // Receiver
+    long getPacketsReceived();
+    long getDuplicatePackets();
+    long getOutOfWindow();
+    long getBytesReceived();
+    long getAcksSent();
+    long getPacketsRecovered();
+
+    // both
+    long getPacketsDropped();
+    long getPacketsCorrupted();
+    long getBadChecksums();
+
+    double getRttMean();
+    double getRttP50();
+    double getRttP99();
+    double getRttMax();
+    double getAckLatencyMean();
+    double getAckLatencyP50();
+    double getAckLatencyP99();
+    double getAckLatencyMax();
+}
@@ -0,0 +1,244 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * NetworkEmulator is an in-process network for running a Sender and a
+ * Receiver against each other without a socket between them. Pass it to
+ * both Builders' setTransport() and every transport they open becomes an
+ * endpoint on it, found by port alone whatever address it is sent to.
+ *
+ * Every datagram crosses a LinkModel on the way, the one set for the port
+ * it is going to or the default one. Each sending endpoint has a link of
+ * its own per destination, seeded from the emulator's seed and the two
+ * ports, so with endpoints opened in the same order the same traffic meets
+ * the same losses, delays and reorderings every run. A datagram is stamped
+ * with its arrival time and sits in its destination's queue until then,
+ * so no thread ever has to move it along. As with a socket, a datagram
+ * that finds the destination's receive buffer full is dropped.
+ */
+public class NetworkEmulator implements Transport.Factory {
+
+    private static final int FIRST_EPHEMERAL_PORT = 49152;
+    private static final int DEFAULT_BUFFER = 212992;
+
+    private final long seed;
+    private final LinkModel model;
+    private final Map<Integer, LinkModel> models = new ConcurrentHashMap<>();
+    private final Map<Integer, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private int nextPort = FIRST_EPHEMERAL_PORT;
+
+    final LongAdder delivered = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder overflowed = new LongAdder();
+    final LongAdder duplicated = new LongAdder();
+    final LongAdder corrupted = new LongAdder();
+
+    /**
+     * @param model Link every datagram crosses unless its destination port has one of its own
+     * @param seed Seed every link's decisions are drawn from
+     */
+    public NetworkEmulator(LinkModel model, long seed){
+        this.model = model;
+        this.seed = seed;
+    }
+
+    /**
+     * Sets the link datagrams to one port cross, e.g. the data path to a Receiver, leaving the acks on the default
+     */
+    public void setLink(int port, LinkModel model) { models.put(port, model); }
+
+    public long getDelivered() { return delivered.sum(); }
+    public long getDropped() { return dropped.sum(); }
+    public long getOverflowed() { return overflowed.sum(); }
+    public long getDuplicated() { return duplicated.sum(); }
+    public long getCorrupted() { return corrupted.sum(); }
+
+    @Override
+    public synchronized Transport open(int port) throws IOException {
+        if (port == 0){
+            while (endpoints.containsKey(nextPort)) nextPort++;
+            port = nextPort++;
+        }
+        Endpoint endpoint = new Endpoint(port);
+        if (endpoints.putIfAbsent(port, endpoint) != null) throw new BindException("Port " + port + " already in use");
+        return endpoint;
+    }
+
+    /**
+     * A datagram on its way, ordered by arrival and then by when it was sent
+     */
+    private static class Datagram implements Comparable<Datagram> {
+        final long arrival;
+        final long order;
+        final byte[] data;
+        final SocketAddress from;
+
+        Datagram(long arrival, long order, byte[] data, SocketAddress from){
+            this.arrival = arrival;
+            this.order = order;
+            this.data = data;
+            this.from = from;
+        }
+
+        @Override
+        public int compareTo(Datagram other){
+            int cmp = Long.compare(arrival, other.arrival);
+            return cmp != 0 ? cmp : Long.compare(order, other.order);
+        }
+    }
+
+    private class Endpoint implements Transport {
+        private final int port;
+        private final SocketAddress address;
+        private final Map<Integer, LinkModel.Link> links = new HashMap<>();
+        private final PriorityQueue<Datagram> queue = new PriorityQueue<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition arrived = lock.newCondition();
+        private final long[] arrivals = new long[2];
+        private final int[] bits = new int[2];
+        private long sent = 0;
+        private int queued = 0;
+        private int sendBuffer = DEFAULT_BUFFER;
+        private int receiveBuffer = DEFAULT_BUFFER;
+        private volatile boolean closed = false;
+
+        Endpoint(int port){
+            this.port = port;
+            address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        }
+
+        @Override
+        public synchronized void send(ByteBuffer packet, SocketAddress target) throws IOException {
+            if (closed) throw new ClosedChannelException();
+            Endpoint destination = endpoints.get(((InetSocketAddress)target).getPort());
+            int length = packet.remaining();
+            LinkModel.Link link = links.computeIfAbsent(((InetSocketAddress)target).getPort(),
+                    to -> models.getOrDefault(to, model).newLink(seed * 31 * 31 + port * 31 + to));
+
+            long now = System.nanoTime();
+            int copies = link.transmit(length, now, arrivals, bits);
+            if (copies == LinkModel.Link.LOST) dropped.increment();
+            if (copies > 1) duplicated.increment();
+            for (int i = 0; i < copies; i++){
+                byte[] data = new byte[length];
+                packet.duplicate().get(data);
+                if (bits[i] >= 0){
+                    data[bits[i] / 8] ^= 1 << (bits[i] % 8);
+                    corrupted.increment();
+                }
+                // nothing listening is the same as a lost packet to UDP
+                if (destination != null) destination.deliver(new Datagram(arrivals[i], sent++, data, address));
+            }
+        }
+
+        void deliver(Datagram datagram){
+            lock.lock();
+            try {
+                if (closed || queued + datagram.data.length > receiveBuffer){
+                    overflowed.increment();
+                    return;
+                }
+                queue.add(datagram);
+                queued += datagram.data.length;
+                arrived.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public SocketAddress receive(ByteBuffer buffer, long timeout) throws IOException {
+            long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+            lock.lock();
+            try {
+                while (true){
+                    if (closed) throw new ClosedChannelException();
+                    long now = System.nanoTime();
+                    Datagram next = queue.peek();
+                    if (next != null && next.arrival <= now) return take(buffer);
+                    long until = Math.min(deadline, next != null ? next.arrival : Long.MAX_VALUE);
+                    if (until <= now) return null;
+                    if (until == Long.MAX_VALUE) arrived.await();
+                    else arrived.awaitNanos(until - now);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClosedChannelException();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public SocketAddress poll(ByteBuffer buffer) throws IOException {
+            lock.lock();
+            try {
+                if (closed) throw new ClosedChannelException();
+                Datagram next = queue.peek();
+                if (next != null && next.arrival <= System.nanoTime()) return take(buffer);
+                buffer.clear().flip();
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Hands over the datagram at the head of the queue, cut short to fit the buffer like a socket would
+         */
+        private SocketAddress take(ByteBuffer buffer){
+            Datagram datagram = queue.poll();
+            queued -= datagram.data.length;
+            delivered.increment();
+            buffer.clear();
+            buffer.put(datagram.data, 0, Math.min(datagram.data.length, buffer.remaining()));
+            buffer.flip();
+            return datagram.from;
+        }
+
+        @Override
+        public int growSendBuffer(int bytes){
+            sendBuffer = Math.max(sendBuffer, bytes);
+            return sendBuffer;
+        }
+
+        @Override
+        public int growReceiveBuffer(int bytes){
+            lock.lock();
+            try {
+                receiveBuffer = Math.max(receiveBuffer, bytes);
+                return receiveBuffer;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close(){
+            lock.lock();
+            try {
+                closed = true;
+                queue.clear();
+                arrived.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            endpoints.remove(port, this);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * PacketChecksum computes and checks the checksum covering a packet's header
+ * and payload, so corruption is caught before anything reaches the disk.
+ *
+ * CRC32C, which the JIT turns into the CPU's own CRC instructions, goes in a
+ * four byte trailer after the last byte len covers. The 16-bit Internet
+ * checksum (RFC 1071) fits in the header's cksum field instead, which keeps
+ * packets four bytes shorter at the cost of weaker detection. Which one a
+ * packet carries follows from the size of the datagram, the trailer is there
+ * exactly when the datagram runs past len, so the receiving side doesn't
+ * have to be told.
+ */
+public enum PacketChecksum {
+    CRC32C,
+    INTERNET;
+
+    static final int TRAILER_LENGTH = 4;
+
+    private static final ThreadLocal<CRC32C> crc = ThreadLocal.withInitial(CRC32C::new);
+
+    /**
+     * @param name crc32c or internet
+     * @throws IllegalArgumentException if name isn't one of them
+     */
+    public static PacketChecksum forName(String name){
+        return valueOf(name.toUpperCase());
+    }
+
+    /**
+     * @return number of bytes this checksum adds past the end of the packet
+     */
+    public int trailerLength() { return this == CRC32C ? TRAILER_LENGTH : 0; }
+
+    /**
+     * Fills in the checksum of an encoded packet
+     * @param packet Packet flipped for sending, with len bytes remaining from position 0. Its
+     *               limit moves past the trailer if there is one, so the buffer needs room for it
+     */
+    public void seal(ByteBuffer packet){
+        int len = length(packet);
+        packet.putShort(PacketView.CKSUM, (short)0);
+        if (this == CRC32C){
+            packet.limit(len + TRAILER_LENGTH);
+            packet.putInt(len, crc32c(packet, len));
+        }
+        else packet.putShort(PacketView.CKSUM, (short)~internet(packet, len));
+    }
+
+    /**
+     * @param packet Packet as received, from position 0 up to the limit
+     * @return the checksum a received packet carries, or null if its size doesn't fit either, or
+     * len doesn't cover as much as the shortest packet there is, an ack
+     */
+    public static PacketChecksum of(ByteBuffer packet){
+        if (packet.limit() < PacketView.ACK_LENGTH || length(packet) < PacketView.ACK_LENGTH) return null;
+        int extra = packet.limit() - length(packet);
+        if (extra == TRAILER_LENGTH) return CRC32C;
+        if (extra == 0) return INTERNET;
+        return null;
+    }
+
+    /**
+     * @param packet Packet as received, from position 0 up to the limit
+     * @return true if the packet's checksum matches its contents
+     */
+    public static boolean verify(ByteBuffer packet){
+        PacketChecksum checksum = of(packet);
+        if (checksum == null) return false;
+
+        int len = length(packet);
+        if (checksum == INTERNET) return internet(packet, len) == 0xffff;
+
+        // the trailer was computed with a zeroed cksum field
+        short field = packet.getShort(PacketView.CKSUM);
+        packet.putShort(PacketView.CKSUM, (short)0);
+        boolean valid = crc32c(packet, len) == packet.getInt(len);
+        packet.putShort(PacketView.CKSUM, field);
+        return valid;
+    }
+
+    private static int length(ByteBuffer packet){
+        return packet.getShort(PacketView.LEN) & 0xffff;
+    }
+
+    /**
+     * CRC32C of the first len bytes, read straight out of the buffer whether it is direct or not
+     */
+    private static int crc32c(ByteBuffer packet, int len){
+        CRC32C checksum = crc.get();
+        checksum.reset();
+        int position = packet.position();
+        int limit = packet.limit();
+        packet.position(0).limit(len);
+        checksum.update(packet);
+        packet.limit(limit).position(position);
+        return (int)checksum.getValue();
+    }
+
+    /**
+     * Ones' complement sum of the first len bytes taken as 16-bit words, padded with a zero byte
+     * if len is odd. Eight bytes are read at a time and their halves added up as 32-bit words,
+     * folded down at the end, which comes to the same sum in big endian order.
+     */
+    private static int internet(ByteBuffer packet, int len){
+        long sum = 0;
+        int i = 0;
+        for (; i + 8 <= len; i += 8){
+            long words = packet.getLong(i);
+            sum += (words >>> 32) + (words & 0xffffffffL);
+        }
+        if (i + 4 <= len){
+            sum += packet.getInt(i) & 0xffffffffL;
+            i += 4;
+        }
+        if (i + 2 <= len){
+            sum += (long)(packet.getShort(i) & 0xffff) << 16;
+            i += 2;
+        }
+        if (i < len) sum += (long)(packet.get(i) & 0xff) << (24 - 8 * (i & 3));
+
+        sum = (sum & 0xffffffffL) + (sum >>> 32);
+        sum = (sum & 0xffffffffL) + (sum >>> 32);
+        int folded = (int)((sum & 0xffff) + (sum >>> 16));
+        return (folded & 0xffff) + (folded >>> 16);
+    }
+}
@@ -0,0 +1,35 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * PacketSink is where the Receiver hands a transfer's accepted data packets,
+ * a file through FileSink or a stream through StreamSink.
+ */
+interface PacketSink extends Closeable {
+
+    /**
+     * Queues an encoded data packet for its payload to be written where its index puts it.
+     * The sink owns the buffer from here on
+     */
+    void write(ByteBuffer packet) throws IOException;
+
+    /**
+     * @return number of packets write() takes before the sink is full, Integer.MAX_VALUE for a
+     * sink that is never full and only ever slows write() down
+     */
+    default int room() { return Integer.MAX_VALUE; }
+
+    /**
+     * Writes out everything queued and finishes the transfer, every packet of it has been written
+     */
+    @Override
+    void close() throws IOException;
+
+    /**
+     * Gives up on a transfer that won't be finished
+     */
+    void abort();
+}
@@ -0,0 +1,307 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PacketView is a flyweight over an encoded CustomPacket. It reads and writes
+ * header fields in place in whatever buffer it is wrapped around, so packets
+ * can go from a pooled buffer to the wire and back without being copied into
+ * objects. The layout is the same one CustomPacket.getPacket() produces.
+ *
+ * One view can be re-wrapped around any number of buffers, it holds no state
+ * of its own beyond the buffer it is currently looking at.
+ *
+ * Data packets don't acknowledge anything, so their ackno field carries the
+ * packet's index in the file instead, its offset over the packet size. Every
+ * stream starts at a seqno of its own choosing, so the seqno alone doesn't
+ * say where the payload goes. The connection id packs
+ * a transfer id shared by every stream of one file in its top 24 bits, the
+ * stream's index in the next 4 and the number of streams less one in the
+ * bottom 4.
+ *
+ * Control packets open a stream before any data goes out and close it once
+ * everything is acked. They carry a zero in the seqno field, which no stream
+ * starts at, the stream's first seqno in the ackno field, and a type, feature
+ * flags, packet size, window and the stream's first index in the file after
+ * the header. A probe is a control packet padded out to the size of the
+ * segment it stands in for. A RESET answers data for a stream the Receiver
+ * has no session for, which the Sender can only give up on. A KEEPALIVE
+ * stands in for data while the Sender's input has none, so the Receiver
+ * doesn't take the stream for idle.
+ *
+ * Parity packets carry the XOR of the payloads of a stripe of data packets,
+ * and the stripe's first seqno negated in the seqno field, so data, control
+ * and parity packets are told apart by its sign. In place of the ackno field
+ * they carry the XOR of the payload lengths, the distance between the seqnos
+ * they cover and how many they cover, which keeps them no bigger than a data
+ * packet. With forward error correction on, acks carry the number of packets
+ * the Receiver has rebuilt after the SACK bitmap. Acks for a stream whose
+ * reader can fall behind go on to advertise how many packets past the ackno
+ * the Receiver has room for, an ack without that has room for the window.
+ *
+ * A SYN-ACK that agrees to resume a transfer carries how many runs of
+ * packets the Receiver already has in the offset field. The Sender lists
+ * them with RESUME packets, each answered by a RESUME-ACK holding the runs
+ * that end past the offset it asked from, as start and end index pairs
+ * after the control fields. A reply with fewer runs than maxRanges() allows
+ * is the last one.
+ *
+ * The top bit of a data packet's index marks a payload that has been
+ * deflated on its own, and the top bit of each length folded into a parity
+ * packet does the same, so a rebuilt payload is known to need inflating too.
+ */
+class PacketView {
+
+    // header layout
+    static final int CKSUM = 0;
+    static final int LEN = 2;
+    static final int CONN_ID = 4;
+    static final int ACKNO = 8;
+    static final int SEQNO = 12;
+    static final int SACK = 12;
+
+    static final int HEADER_LENGTH = 16;
+    static final int ACK_LENGTH = 12;
+    static final int SACK_LENGTH = 16;
+
+    static final int MAX_STREAMS = 16;
+
+    // control packet layout, after the header
+    static final int TYPE = 16;
+    static final int FLAGS = 17;
+    static final int MSS = 18;
+    static final int WINDOW = 20;
+    static final int OFFSET = 24;
+    static final int FEC_GROUP = 28;
+    static final int CONTROL_LENGTH = 32;
+
+    // runs of received packets listed in a RESUME-ACK, after the control fields
+    static final int RANGES = 32;
+    static final int RANGE_LENGTH = 8;
+    static final int MAX_RANGES = 128;
+
+    // parity packet layout, in place of the ackno field
+    static final int PARITY_LENGTHS = 8;
+    static final int PARITY_STRIDE = 10;
+    static final int PARITY_COUNT = 11;
+    static final int PARITY_COMPRESSED = 0x8000;
+
+    static final int RECOVERED = 16;
+    static final int FEC_ACK_LENGTH = 20;
+    static final int ADVERTISED = 20;
+    static final int FLOW_ACK_LENGTH = 24;
+
+    static final int SYN = 1;
+    static final int SYN_ACK = 2;
+    static final int PROBE = 3;
+    static final int PROBE_ACK = 4;
+    static final int FIN = 5;
+    static final int FIN_ACK = 6;
+    static final int RESUME = 7;
+    static final int RESUME_ACK = 8;
+    static final int RESET = 9;
+    static final int KEEPALIVE = 10;
+
+    // features a SYN asks for and a SYN-ACK agrees to
+    static final int FLAG_SACK = 1;
+    static final int FLAG_FEC = 2;
+    static final int FLAG_COMPRESS = 4;
+    static final int FLAG_RESUME = 8;
+
+    // marks a compressed payload in a data packet's index
+    static final int COMPRESSED = 0x80000000;
+
+    private ByteBuffer buffer;
+
+    static int connId(int transferId, int streamIndex, int streams){
+        return transferId << 8 | (streamIndex & 0xf) << 4 | ((streams - 1) & 0xf);
+    }
+
+    static int transferId(int connId) { return connId >>> 8; }
+    static int streamIndex(int connId) { return (connId >>> 4) & 0xf; }
+    static int streamCount(int connId) { return (connId & 0xf) + 1; }
+
+    /**
+     * @return most runs a RESUME-ACK holds, never more than a data packet of mss bytes would take up
+     */
+    static int maxRanges(int mss) { return Math.max(1, Math.min(MAX_RANGES, (HEADER_LENGTH + mss - CONTROL_LENGTH) / RANGE_LENGTH)); }
+
+    public PacketView wrap(ByteBuffer buffer){
+        this.buffer = buffer;
+        return this;
+    }
+
+    public ByteBuffer buffer() { return buffer; }
+
+    public short getCksum() { return buffer.getShort(CKSUM); }
+    public int getLen() { return buffer.getShort(LEN) & 0xffff; }
+    public int getConnId() { return buffer.getInt(CONN_ID); }
+    public int getAckno() { return buffer.getInt(ACKNO); }
+    public int getSeqno() { return buffer.getInt(SEQNO); }
+    public int getIndex() { return buffer.getInt(ACKNO) & ~COMPRESSED; }
+    public boolean isCompressed() { return (buffer.getInt(ACKNO) & COMPRESSED) != 0; }
+    public int getFirstSeqno() { return buffer.getInt(ACKNO); }
+    public int getSack() { return getLen() > ACK_LENGTH ? buffer.getInt(SACK) : 0; }
+    public int getRecovered() { return getLen() >= FEC_ACK_LENGTH ? buffer.getInt(RECOVERED) : 0; }
+    public int getAdvertised() { return getLen() >= FLOW_ACK_LENGTH ? buffer.getInt(ADVERTISED) : Integer.MAX_VALUE; }
+    public int getPayloadLength() { return getLen() - HEADER_LENGTH; }
+    public boolean isControl() { return getLen() >= CONTROL_LENGTH && buffer.getInt(SEQNO) == 0; }
+    public int getType() { return buffer.get(TYPE); }
+    public int getFlags() { return buffer.get(FLAGS); }
+    public int getMss() { return buffer.getShort(MSS) & 0xffff; }
+    public int getWindow() { return buffer.getInt(WINDOW); }
+    public int getOffset() { return buffer.getInt(OFFSET); }
+    public int getFecGroup() { return buffer.getInt(FEC_GROUP); }
+    public boolean isParity() { return getSeqno() < 0; }
+    public int getParityFirst() { return -getSeqno(); }
+    public int getParityLengths() { return buffer.getShort(PARITY_LENGTHS) & 0xffff; }
+    public int getParityStride() { return buffer.get(PARITY_STRIDE) & 0xff; }
+    public int getParityCount() { return buffer.get(PARITY_COUNT) & 0xff; }
+    public int getRangeCount() { return (getLen() - CONTROL_LENGTH) / RANGE_LENGTH; }
+    public int getRangeStart(int i) { return buffer.getInt(RANGES + i * RANGE_LENGTH); }
+    public int getRangeEnd(int i) { return buffer.getInt(RANGES + i * RANGE_LENGTH + 4); }
+
+    public void setCksum(short cksum) { buffer.putShort(CKSUM, cksum); }
+    public void setFlags(int flags) { buffer.put(FLAGS, (byte)flags); }
+    public void setWindow(int window) { buffer.putInt(WINDOW, window); }
+    public void setOffset(int offset) { buffer.putInt(OFFSET, offset); }
+    public void setFecGroup(int group) { buffer.putInt(FEC_GROUP, group); }
+    public void setCompressed() { buffer.putInt(ACKNO, buffer.getInt(ACKNO) | COMPRESSED); }
+    public void setRange(int i, int start, int end) {
+        buffer.putInt(RANGES + i * RANGE_LENGTH, start);
+        buffer.putInt(RANGES + i * RANGE_LENGTH + 4, end);
+    }
+
+    /**
+     * Encodes a data packet, taking length bytes of payload from source
+     * @param connId Connection the packet belongs to
+     * @param index Index of the packet in the file, where its payload goes over the packet size
+     * @param seqno Sequence number of the payload
+     * @param source Buffer the payload is copied from, its position is advanced past it
+     * @param length Number of payload bytes
+     * @return this view, with the buffer flipped so it is ready to send
+     */
+    public PacketView writeData(int connId, int index, int seqno, ByteBuffer source, int length){
+        buffer.clear();
+        buffer.putShort((short)0);
+        buffer.putShort((short)(HEADER_LENGTH + length));
+        buffer.putInt(connId);
+        buffer.putInt(index);
+        buffer.putInt(seqno);
+
+        int limit = source.limit();
+        source.limit(source.position() + length);
+        buffer.put(source);
+        source.limit(limit);
+
+        buffer.flip();
+        return this;
+    }
+
+    /**
+     * Encodes an ack, with a SACK bitmap if selective is set
+     * @return this view, with the buffer flipped so it is ready to send
+     */
+    public PacketView writeAck(int connId, int ackno, int sack, boolean selective){
+        buffer.clear();
+        buffer.putShort((short)0);
+        buffer.putShort((short)(selective ? SACK_LENGTH : ACK_LENGTH));
+        buffer.putInt(connId);
+        buffer.putInt(ackno);
+        if (selective) buffer.putInt(sack);
+        buffer.flip();
+        return this;
+    }
+
+    /**
+     * Encodes an ack that also reports how many packets the Receiver has rebuilt from parity
+     * @return this view, with the buffer flipped so it is ready to send
+     */
+    public PacketView writeAck(int connId, int ackno, int sack, int recovered){
+        buffer.clear();
+        buffer.putShort((short)0);
+        buffer.putShort((short)FEC_ACK_LENGTH);
+        buffer.putInt(connId);
+        buffer.putInt(ackno);
+        buffer.putInt(sack);
+        buffer.putInt(recovered);
+        buffer.flip();
+        return this;
+    }
+
+    /**
+     * Encodes an ack that also advertises how many packets past ackno the Receiver has room for
+     * @param recovered Number of packets rebuilt from parity, 0 without forward error correction
+     * @return this view, with the buffer flipped so it is ready to send
+     */
+    public PacketView writeAck(int connId, int ackno, int sack, int recovered, int advertised){
+        buffer.clear();
+        buffer.putShort((short)0);
+        buffer.putShort((short)FLOW_ACK_LENGTH);
+        buffer.putInt(connId);
+        buffer.putInt(ackno);
+        buffer.putInt(sack);
+        buffer.putInt(recovered);
+        buffer.putInt(advertised);
+        buffer.flip();
+        return this;
+    }
+
+    /**
+     * Encodes a parity packet, taking length bytes of XORed payload from source
+     * @param first First seqno the parity covers
+     * @param stride Distance between the seqnos it covers
+     * @param count Number of seqnos it covers
+     * @param lengths XOR of the payload lengths of the packets it covers
+     * @return this view, with the buffer flipped so it is ready to send
+     */
+    public PacketView writeParity(int connId, int first, int stride, int count, int lengths, ByteBuffer source, int length){
+        buffer.clear();
+        buffer.putShort((short)0);
+        buffer.putShort((short)(HEADER_LENGTH + length));
+        buffer.putInt(connId);
+        buffer.putShort((short)lengths);
+        buffer.put((byte)stride);
+        buffer.put((byte)count);
+        buffer.putInt(-first);
+        ByteBuffer payload = source.duplicate();
+        payload.limit(length).position(0);
+        buffer.put(payload);
+        buffer.flip();
+        return this;
+    }
+
+    /**
+     * Encodes a control packet, with no flags, window or offset set
+     * @param firstSeqno First seqno of the stream the packet is about
+     * @param mss Segment payload size asked for, agreed to or probed
+     * @param length Number of bytes after the header, anything past the control fields is zero padding
+     * @return this view, with the buffer flipped so it is ready to send
+     */
+    public PacketView writeControl(int connId, int type, int firstSeqno, int mss, int length){
+        buffer.clear();
+        buffer.putShort((short)0);
+        buffer.putShort((short)(HEADER_LENGTH + Math.max(length, CONTROL_LENGTH - HEADER_LENGTH)));
+        buffer.putInt(connId);
+        buffer.putInt(firstSeqno);
+        buffer.putInt(0);
+        buffer.put((byte)type);
+        buffer.put((byte)0);
+        buffer.putShort((short)mss);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        while (buffer.position() < HEADER_LENGTH + length) buffer.put((byte)0);
+        buffer.flip();
+        return this;
+    }
+
+    /**
+     * Points the buffer's position and limit at the payload, for handing it to a channel
+     */
+    public ByteBuffer payload(){
+        buffer.limit(getLen());
+        buffer.position(HEADER_LENGTH);
+        return buffer;
+    }
+}
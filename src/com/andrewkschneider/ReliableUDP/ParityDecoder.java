@@ -0,0 +1,85 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ParityDecoder rebuilds a lost data packet from a parity packet and the
+ * other packets its stripe covers. The Receiver hands payloads to the sink
+ * as soon as they arrive, so the decoder keeps its own copy of the last
+ * window's worth of them, in a ring indexed by seqno like SlidingWindow.
+ */
+class ParityDecoder {
+
+    private final ByteBuffer copies;
+    private final int[] seqnos;
+    private final int[] lengths;
+    private final int mss;
+    private final ByteBuffer rebuilt;
+    private boolean compressed;
+
+    /**
+     * @param capacity Number of payloads to keep, the Receiver's window
+     * @param mss Largest payload a data packet carries
+     */
+    ParityDecoder(int capacity, int mss){
+        this.mss = mss;
+        copies = ByteBuffer.allocateDirect(capacity * mss);
+        seqnos = new int[capacity];
+        lengths = new int[capacity];
+        rebuilt = ByteBuffer.allocateDirect(mss);
+    }
+
+    /**
+     * Keeps a copy of an accepted data packet's payload
+     * @param packet Encoded data packet, read without moving its position or limit
+     */
+    void add(int seqno, ByteBuffer packet, int length){
+        int slot = slot(seqno);
+        seqnos[slot] = seqno;
+        lengths[slot] = ParityEncoder.lengthWord(packet, length);
+        copy(copies, slot * mss, packet, PacketView.HEADER_LENGTH, length);
+    }
+
+    /**
+     * @return true if the payload last rebuilt is a compressed one
+     */
+    boolean isCompressed() { return compressed; }
+
+    /**
+     * Rebuilds the one packet a parity packet covers that didn't arrive
+     * @param parity View of the parity packet
+     * @param missing Seqno of the packet to rebuild, every other one the parity covers has to have arrived
+     * @return the rebuilt payload, from position 0 up to the limit, or null if a copy it needs is gone
+     */
+    ByteBuffer rebuild(PacketView parity, int missing){
+        int length = parity.getParityLengths();
+        if (parity.getPayloadLength() > mss) return null;
+        rebuilt.clear();
+        copy(rebuilt, 0, parity.buffer(), PacketView.HEADER_LENGTH, parity.getPayloadLength());
+        for (int i = parity.getPayloadLength(); i < mss; i++) rebuilt.put(i, (byte)0);
+
+        for (int i = 0, seqno = parity.getParityFirst(); i < parity.getParityCount(); i++, seqno += parity.getParityStride()){
+            if (seqno == missing) continue;
+            int slot = slot(seqno);
+            if (seqnos[slot] != seqno) return null;
+            ParityEncoder.xor(rebuilt, copies, slot * mss, lengths[slot] & ~PacketView.PARITY_COMPRESSED);
+            length ^= lengths[slot];
+        }
+        compressed = (length & PacketView.PARITY_COMPRESSED) != 0;
+        length &= ~PacketView.PARITY_COMPRESSED;
+        if (length > mss) return null;
+        rebuilt.limit(length);
+        return rebuilt;
+    }
+
+    /**
+     * Copies length bytes from src at offset to dst at position, moving neither buffer's position or limit
+     */
+    private static void copy(ByteBuffer dst, int position, ByteBuffer src, int offset, int length){
+        int i = 0;
+        for (; i + 8 <= length; i += 8) dst.putLong(position + i, src.getLong(offset + i));
+        for (; i < length; i++) dst.put(position + i, src.get(offset + i));
+    }
+
+    private int slot(int seqno) { return Math.floorMod(seqno, seqnos.length); }
+}
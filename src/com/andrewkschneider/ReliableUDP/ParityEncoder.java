@@ -0,0 +1,115 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ParityEncoder builds the XOR parity the Sender sends after every group of
+ * data packets when forward error correction is on. With k parity packets
+ * to a group, parity j covers the packets at positions j, j + k, j + 2k and
+ * so on, so any k losses in a row can all be rebuilt as long as there is no
+ * more than one in each stripe.
+ *
+ * The number of parity packets can be changed between groups, the Receiver
+ * learns each stripe's layout from the parity packet itself.
+ */
+class ParityEncoder {
+
+    private final int groupSize;
+    private final ByteBuffer[] stripes;
+    private final int[] lengths;
+    private final int[] longest;
+    private int parity;
+    private int groupParity;
+    private int first;
+    private int count = 0;
+
+    /**
+     * @param groupSize Number of data packets in a group
+     * @param maxParity Most parity packets a group will ever get
+     * @param mss Largest payload a data packet carries
+     */
+    ParityEncoder(int groupSize, int maxParity, int mss){
+        this.groupSize = groupSize;
+        stripes = new ByteBuffer[maxParity];
+        // rounded up so clearing them a long at a time stays inside
+        for (int i = 0; i < maxParity; i++) stripes[i] = ByteBuffer.allocateDirect((mss + 7) & ~7);
+        lengths = new int[maxParity];
+        longest = new int[maxParity];
+        parity = maxParity;
+    }
+
+    int getGroupSize() { return groupSize; }
+    int getParity() { return parity; }
+
+    /**
+     * Sets the number of parity packets, taking effect from the next group on
+     */
+    void setParity(int parity){ this.parity = Math.max(0, Math.min(stripes.length, parity)); }
+
+    /**
+     * @return number of data packets in the group so far
+     */
+    int size() { return count; }
+
+    /**
+     * Adds a data packet to the group, XORing its payload into the stripe it falls in
+     * @param packet Encoded data packet, read without moving its position or limit
+     * @return true if the group is now full and its parity should go out
+     */
+    boolean add(int seqno, ByteBuffer packet, int length){
+        if (count == 0){
+            first = seqno;
+            groupParity = parity;
+        }
+        if (groupParity > 0){
+            int stripe = count % groupParity;
+            xor(stripes[stripe], packet, PacketView.HEADER_LENGTH, length);
+            lengths[stripe] ^= lengthWord(packet, length);
+            longest[stripe] = Math.max(longest[stripe], length);
+        }
+        return ++count == groupSize;
+    }
+
+    /**
+     * @return number of parity packets the group so far gets, none for an empty group
+     */
+    int parityCount() { return Math.min(groupParity, count); }
+
+    /**
+     * Encodes one parity packet of the group
+     * @param stripe Which of the group's parity packets, below parityCount()
+     */
+    PacketView writeParity(PacketView view, int connId, int stripe){
+        int covered = (count - stripe + groupParity - 1) / groupParity;
+        return view.writeParity(connId, first + stripe, groupParity, covered, lengths[stripe], stripes[stripe], longest[stripe]);
+    }
+
+    /**
+     * Clears the stripes for the next group
+     */
+    void reset(){
+        for (int i = 0; i < stripes.length; i++){
+            for (int j = 0; j < longest[i]; j += 8) stripes[i].putLong(j, 0);
+            lengths[i] = 0;
+            longest[i] = 0;
+        }
+        count = 0;
+    }
+
+    /**
+     * @return the payload length as folded into parity, with PARITY_COMPRESSED set for a compressed payload
+     */
+    static int lengthWord(ByteBuffer packet, int length){
+        return (packet.getInt(PacketView.ACKNO) & PacketView.COMPRESSED) != 0 ? length | PacketView.PARITY_COMPRESSED : length;
+    }
+
+    /**
+     * XORs length bytes of src, starting at offset, into the start of dst, eight at a time
+     * where it can. Neither buffer's position or limit moves.
+     */
+    static void xor(ByteBuffer dst, ByteBuffer src, int offset, int length){
+        int i = 0;
+        for (; i + 8 <= length; i += 8) dst.putLong(i, dst.getLong(i) ^ src.getLong(offset + i));
+        for (; i < length; i++) dst.put(i, (byte)(dst.get(i) ^ src.get(offset + i)));
+    }
+}
@@ -0,0 +1,89 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * PayloadCompressor deflates data packet payloads one at a time, each on its
+ * own with no dictionary carried over from the one before, so the Receiver
+ * can inflate a payload in whatever order it arrives, and a resent or
+ * rebuilt one just like the original.
+ *
+ * A payload only goes out compressed if that makes it smaller. Data that
+ * doesn't compress would cost a deflate per packet for nothing, so every
+ * payload that doesn't shrink has the next few sent as they are without
+ * trying, twice as many each time up to MAX_SKIP, until one shrinks again.
+ */
+class PayloadCompressor {
+
+    private static final int MAX_SKIP = 64;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final ByteBuffer output;
+    private int skip = 0;
+    private int backoff = 1;
+
+    /**
+     * @param mss Largest payload a data packet carries
+     */
+    PayloadCompressor(int mss){
+        output = ByteBuffer.allocateDirect(mss);
+    }
+
+    /**
+     * Deflates length bytes of source from its position, neither of which moves
+     * @return the compressed payload from position 0 up to the limit, or null if the payload should go out as it is
+     */
+    ByteBuffer compress(ByteBuffer source, int length){
+        if (skip > 0){
+            skip--;
+            return null;
+        }
+
+        int position = source.position();
+        int limit = source.limit();
+        deflater.reset();
+        deflater.setInput(source.limit(position + length));
+        deflater.finish();
+        // anything that doesn't fit in fewer bytes than it started with isn't worth it
+        output.clear().limit(length - 1);
+        if (length > 1) deflater.deflate(output);
+        boolean smaller = length > 1 && deflater.finished();
+        source.limit(limit).position(position);
+
+        if (!smaller){
+            skip = backoff;
+            backoff = Math.min(MAX_SKIP, backoff * 2);
+            return null;
+        }
+        backoff = 1;
+        return output.flip();
+    }
+
+    void close(){
+        deflater.end();
+    }
+
+    /**
+     * Inflates a payload compressed by compress(), for the sinks
+     * @param inflater Raw inflater, reset before use
+     * @param output Buffer the size of an uncompressed payload
+     * @return the inflated payload, flipped in output
+     * @throws IOException if the payload doesn't inflate to a packet's worth or less
+     */
+    static ByteBuffer inflate(Inflater inflater, ByteBuffer payload, ByteBuffer output) throws IOException {
+        inflater.reset();
+        inflater.setInput(payload);
+        output.clear();
+        try {
+            inflater.inflate(output);
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed payload", e);
+        }
+        if (!inflater.finished()) throw new IOException("Compressed payload inflates past the packet size");
+        return output.flip();
+    }
+}
@@ -0,0 +1,45 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PayloadSource feeds the Sender the bytes to be transferred a payload at a
+ * time, without ever holding the whole input in memory. Payloads are sliced
+ * straight out of the buffer next() returns, so nothing is copied on the way
+ * into a packet except into the packet itself.
+ */
+public interface PayloadSource extends Closeable {
+
+    /**
+     * @param length Size of the payload wanted
+     * @return buffer whose next min(length, bytes left in the input) bytes are the next payload,
+     * the caller advances its position past whatever it takes. No bytes remaining means the input is done
+     */
+    ByteBuffer next(int length) throws IOException;
+
+    /**
+     * @return true if next(length) would return without waiting on the input, which a file always does
+     */
+    default boolean ready(int length) throws IOException { return true; }
+
+    /**
+     * Opens a regular file as a memory mapped source, anything else (pipes, devices, "-" for stdin) is streamed
+     * @param name File to read, or "-" for stdin
+     * @param packetSize Largest payload that will be asked for
+     */
+    static PayloadSource open(String name, int packetSize) throws IOException {
+        if (name.equals("-")) return new StreamSource(Channels.newChannel(System.in), packetSize);
+
+        Path path = Paths.get(name);
+        if (Files.isRegularFile(path)) return new MappedFileSource(FileChannel.open(path, StandardOpenOption.READ));
+        return new StreamSource(FileChannel.open(path, StandardOpenOption.READ), packetSize);
+    }
+}
@@ -0,0 +1,120 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ReceivedRanges is the part of a file the Receiver already had when a
+ * transfer was resumed, as sorted runs of packet indexes that neither
+ * overlap nor touch. Only the packets outside them are sent again.
+ *
+ * Seqnos still run on without gaps, so both sides number the packets that
+ * are left the same way: a stream's nth seqno carries the nth missing index
+ * at or after the stream's offset. That lets the Receiver work out where a
+ * packet rebuilt from parity goes without being told. With nothing received
+ * this is just the offset plus n, as for any transfer that isn't resumed.
+ */
+class ReceivedRanges {
+
+    static final ReceivedRanges NONE = new ReceivedRanges(new int[0], new int[0]);
+
+    private final int[] starts;
+    private final int[] ends;
+
+    // number of received indexes below each run's start
+    private final int[] before;
+    private final int total;
+
+    /**
+     * @param starts First index of each run, ascending
+     * @param ends Index just past the end of each run
+     */
+    ReceivedRanges(int[] starts, int[] ends){
+        this.starts = starts;
+        this.ends = ends;
+        before = new int[starts.length];
+        int total = 0;
+        for (int i = 0; i < starts.length; i++){
+            before[i] = total;
+            total += ends[i] - starts[i];
+        }
+        this.total = total;
+    }
+
+    /**
+     * @param ranges Runs as {start, end} pairs, ascending
+     */
+    ReceivedRanges(List<int[]> ranges){
+        this(ranges.stream().mapToInt(range -> range[0]).toArray(), ranges.stream().mapToInt(range -> range[1]).toArray());
+    }
+
+    /**
+     * @return number of runs
+     */
+    int size() { return starts.length; }
+
+    /**
+     * @return number of received indexes
+     */
+    int count() { return total; }
+
+    int start(int run) { return starts[run]; }
+    int end(int run) { return ends[run]; }
+
+    /**
+     * @return first run that ends past index, size() if none does
+     */
+    int find(int index){
+        int found = Arrays.binarySearch(ends, index);
+        return found >= 0 ? found + 1 : -found - 1;
+    }
+
+    /**
+     * @return number of received indexes below limit
+     */
+    int received(int limit){
+        int run = find(limit);
+        return run == starts.length ? total : before[run] + Math.max(0, limit - starts[run]);
+    }
+
+    /**
+     * @return number of missing indexes below limit
+     */
+    int missing(int limit) { return limit - received(limit); }
+
+    /**
+     * @return the nth missing index at or after from, counting from 0
+     */
+    int index(int from, int n){
+        int rank = missing(from) + n;
+        // the first run with more than rank missing indexes below it has the one wanted just before it
+        int low = 0;
+        int high = starts.length;
+        while (low < high){
+            int mid = (low + high) >>> 1;
+            if (starts[mid] - before[mid] > rank) high = mid;
+            else low = mid + 1;
+        }
+        return rank + (low < starts.length ? before[low] : total);
+    }
+
+    /**
+     * @return runs of missing indexes as {start, end} pairs, holding count of them from the first at or after from
+     */
+    List<int[]> missingRuns(int from, int count){
+        List<int[]> runs = new ArrayList<>();
+        int at = from;
+        for (int run = find(from); count > 0; ){
+            if (run < starts.length && starts[run] <= at){
+                at = ends[run++];
+                continue;
+            }
+            int end = run < starts.length ? Math.min(starts[run], at + count) : at + count;
+            runs.add(new int[]{ at, end });
+            count -= end - at;
+            at = end;
+        }
+        return runs;
+    }
+}
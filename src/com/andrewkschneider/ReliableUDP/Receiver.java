@@ -2,12 +2,17 @@ package com.andrewkschneider.ReliableUDP;
 
 import org.apache.commons.cli.*;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.PrintStream;
 import java.net.*;
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Receiver receives data from the included Sender class via unreliable
@@ -18,18 +23,41 @@ import java.util.Random;
 public class Receiver {
 
     private InetAddress address;
-    private int packetSize = 500;
-    private int timeoutLength = 2000;
-    private int windowSize = 5;
+    private int packetSize = 8952;
+    private int windowSize = 64;
     private double dropCorruptRate = 0;
     private int PORT = 13;
+    private String fileName = "output.txt";
+    private boolean selectiveRepeat = false;
+    private boolean server = false;
+    private int idleTimeout = 60000;
+    private int logSampling = 1;
+    private int batchSize = 1;
+    private Transport.Factory transports = DatagramTransport::new;
+    private LinkModel link;
+    private long seed = System.nanoTime();
+    private TransferHandler handler;
+    private PrintStream out = System.out;
+    private volatile Transport transport;
+    private volatile boolean closed = false;
+    private final Metrics metrics = new Metrics();
+    private EventLog log;
+    private final PacketView view = new PacketView();
+    private final PacketView rebuiltView = new PacketView();
 
     private static final String cmdLineSyntax = "java -cp \"commons-cli-1.4.jar;.\" com.andrewkschneider.ReliableUDP.Receiver [options] receiver_ip_address receiver_port";
 
     public static void main(String[] args){
         Options options = new Options();
-        options.addOption("w", true, "Window size");
+        options.addOption("s", true, "Largest packet payload to agree to, the Sender's is cut down to it");
+        options.addOption("w", true, "Largest window to agree to, the Sender's is cut down to it");
+        options.addOption("o", true, "File to write received data to");
         options.addOption("d", true, "Percentage of packets to drop or corrupt, expressed as a decimal");
+        options.addOption("r", false, "Agree to selective repeat when the Sender asks, buffering out of order packets and sending SACKs");
+        options.addOption("m", false, "Serve any number of concurrent transfers until killed, each to its own file");
+        options.addOption("i", true, "Time in ms after which an unfinished transfer that has gone quiet is dropped");
+        options.addOption("v", true, "Log one in every n packet events, 0 to log none");
+        options.addOption("batch", true, "Take up to n datagrams per wakeup and ack the in-order ones once per batch");
 
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
@@ -45,8 +73,15 @@ public class Receiver {
 
         Builder builder = new Builder();
         if (cmd != null){
+            if (cmd.hasOption("s")) builder.setPacketSize(Integer.parseInt(cmd.getOptionValue("s")));
             if (cmd.hasOption("w")) builder.setWindowSize(Integer.parseInt(cmd.getOptionValue("w")));
+            if (cmd.hasOption("o")) builder.setFileName(cmd.getOptionValue("o"));
             if (cmd.hasOption("d")) builder.setDropCorruptRate(Double.parseDouble(cmd.getOptionValue("d")));
+            if (cmd.hasOption("r")) builder.setSelectiveRepeat(true);
+            if (cmd.hasOption("m")) builder.setServer(true);
+            if (cmd.hasOption("i")) builder.setIdleTimeout(Integer.parseInt(cmd.getOptionValue("i")));
+            if (cmd.hasOption("v")) builder.setLogSampling(Integer.parseInt(cmd.getOptionValue("v")));
+            if (cmd.hasOption("batch")) builder.setBatchSize(Integer.parseInt(cmd.getOptionValue("batch")));
         }else throw new NullPointerException("CommandLind cmd is null");
         if (cmd.getArgs().length < 2){
             System.out.println("IP and port are required");
@@ -61,155 +96,671 @@ public class Receiver {
         receiver.receive();
     }
 
-    public void receive(){
-        try (DatagramSocket socket = new DatagramSocket(PORT); Writer writer = new BufferedWriter(new FileWriter("output.txt"));){
+    /**
+     * @return counters of this Receiver, also published over JMX while receive() runs
+     */
+    public Metrics getMetrics() { return metrics; }
+
+    /**
+     * Opens the socket ahead of receive(), so a port already in use shows up here rather than in its thread
+     * @throws IOException if the socket can't be opened
+     */
+    public void bind() throws IOException {
+        if (transport == null) transport = open();
+    }
 
+    /**
+     * Stops receive() from another thread, giving up on whatever transfers are still going
+     */
+    public void close(){
+        closed = true;
+        Transport transport = this.transport;
+        try {
+            if (transport != null) transport.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            DatagramPacket response = new DatagramPacket(new byte[2048], 2048);
-            CustomPacket responsePacket = null;
-            CustomPacket ackPacket;
-            int ackno = 1;
-            CustomPacket[] window = new CustomPacket[windowSize];
-            String packetCond;
-            boolean dup;
-            boolean finalPacket = false;
-
-            Random rng = new Random();
-            String ackCond;
-            boolean sendAck;
-
-            while (true){
-
-                for (int i = 0; i < window.length; i++) window[i]= null;
-
-                // receive packets until window is full
-                for (int i = 0; i < window.length; i++) {
-                    while (window[i] == null) {
-
-                        dup = false;
-
-                        socket.receive(response);
-                        responsePacket = new CustomPacket(response.getData());
-
-                        if (responsePacket.getCksum() == 1) packetCond = "CRPT";
-                        else if (responsePacket.getSeqno() != ackno) packetCond = "!Seq";
-                        else packetCond = "RECV";
-                        if (responsePacket.getSeqno() < ackno ) {
-                            dup = true;
-                            if (responsePacket.getSeqno() < ackno - 5) {
-                                ackPacket = new CustomPacket(ackno, (short)0);
-                                ackCond = "SENT";
-                                sendAck = true;
-                                if (rng.nextDouble() < dropCorruptRate){
-                                    if (rng.nextInt() %2 == 1) {
-                                        ackPacket.setCksum((short) 1);
-                                        ackCond = "ERRR";
-                                    }
-                                    else {
-                                        sendAck = false;
-                                        ackCond = "DROP";
-                                    }
-                                }
+    /**
+     * Runs the receive loop. Every stream gets its own session, keyed by the
+     * Sender's address and connection id, and all of them are driven from this
+     * one thread off a single selector. Streams of the same file share one
+     * transfer and write through its FileSink, whose thread does the disk
+     * writes. A stream's session opens with its SYN and is dropped as soon as
+     * its FIN arrives. Without server mode the loop returns once the first
+     * transfer has finished.
+     *
+     * With a batch size above one, every wakeup drains up to that many
+     * datagrams with non-blocking reads before going back to the selector.
+     * Packets that arrive in order don't get an ack of their own, each
+     * session they touched gets one cumulative ack when the batch ends, which
+     * saves a send for every packet the ack covers. Anything out of order is
+     * still acked right away so the Sender sees its duplicate acks.
+     *
+     * A stream with forward error correction doesn't ack a packet that
+     * arrives ahead of a gap in the same group straight away. The group's
+     * parity is due right after it, and if it fills the gap the Sender never
+     * hears about the loss and doesn't resend anything. If it can't, the ack
+     * that goes out with the parity shows the gap like any other.
+     *
+     * A transfer that asks to be resumable has a Checkpoint kept next to its
+     * file. If the Sender dies or this Receiver does, the Sender started again
+     * lists what is already in during the handshake and sends only the rest.
+     *
+     * Every datagram lands in one buffer sized for the largest packet this
+     * Receiver agrees to, since whose it is isn't known until it is in. What a
+     * stream accepts is copied into a buffer from its transfer's pool, sized
+     * for the packet size the transfer agreed on, which grows by two windows
+     * a stream, one arriving and one waiting for the sink, and shrinks again as
+     * streams go. The socket's receive buffer grows with every stream that
+     * connects to hold a full window of the packets it agreed on.
+     */
+    public void receive(){
+        ByteBuffer buffer = ByteBuffer.allocateDirect(PacketView.HEADER_LENGTH + packetSize + PacketChecksum.TRAILER_LENGTH);
+        Map<SessionKey, Session> sessions = new HashMap<>();
+        Map<SessionKey, Transfer> transfers = new HashMap<>();
+        log = new EventLog(logSampling, 8192, out);
+        metrics.register(String.format("type=Receiver,port=%d", PORT));
+
+        try (Transport transport = this.transport != null ? this.transport : open()){
+            this.transport = transport;
+
+            PacketView ack = new PacketView().wrap(ByteBuffer.allocateDirect(PacketView.CONTROL_LENGTH + PacketChecksum.TRAILER_LENGTH));
+            PacketView listing = new PacketView().wrap(ByteBuffer.allocateDirect(PacketView.RANGES + PacketView.MAX_RANGES * PacketView.RANGE_LENGTH + PacketChecksum.TRAILER_LENGTH));
+            long nextSweep = Long.MAX_VALUE;
+            boolean served = false;
+            List<Session> pending = new ArrayList<>();
+            int batched = 0;
+            long receiveBuffer = 0;
+            // reused for every lookup, so finding a packet's session doesn't allocate
+            SessionKey key = new SessionKey(null, 0);
+
+            while (!closed && (server || !served || !sessions.isEmpty() || !transfers.isEmpty())){
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep){
+                    nextSweep = sweep(sessions, transfers, pending, now);
+                    continue;
+                }
+
+                // only the first datagram of a batch is waited for, the rest are taken if they are already
+                // there, and whatever acks the last batch held back go out before waiting again
+                if (batched == 0) flushAcks(transport, pending, ack);
+                buffer.clear();
+                SocketAddress sender = batched > 0 ? transport.poll(buffer) : transport.receive(buffer, nextSweep == Long.MAX_VALUE ? 0 : Math.max(1, nextSweep - now));
+                if (sender == null){
+                    // a batch that runs dry ends here, so its acks go out now rather than
+                    // after a sweep or whatever else the next time round the loop does first
+                    if (batched > 0) flushAcks(transport, pending, ack);
+                    batched = 0;
+                    continue;
+                }
+                if (++batched == batchSize) batched = 0;
+
+                // nothing in the header can be trusted, the connection id included, until the checksum has been checked,
+                // and the checksum only vouches for the len bytes it covers, which have to hold a whole header since
+                // the Receiver is never sent a bare ack
+                if (!PacketChecksum.verify(buffer) || view.wrap(buffer).getLen() < PacketView.HEADER_LENGTH){
+                    metrics.badChecksums.increment();
+                    log.sample("RECV", 0, 0, "CRPT");
+                    continue;
+                }
 
-                                if (sendAck)socket.send(ackPacket.getPacket(response.getAddress(), response.getPort()));
-                                System.out.println(String.format("[ACK] %3d [%s]", ackno, ackCond));
+                Session session = sessions.get(key.set(sender, view.getConnId()));
+                if (view.isControl()){
+                    if (view.getType() == PacketView.PROBE){
+                        // a padded probe that got here whole fits the path and our buffers, a bare one is
+                        // asking how big a packet we take
+                        reply(transport, ack, buffer, key, PacketView.PROBE_ACK, Math.min(view.getMss(), packetSize), null);
+                    }
+                    else if (view.getType() == PacketView.SYN){
+                        if (session == null && (session = connect(key, sessions, transfers, pending)) != null){
+                            served = true;
+                            long wanted = (long)session.window.capacity() * (PacketView.HEADER_LENGTH + session.transfer.mss + PacketChecksum.TRAILER_LENGTH) * sessions.size();
+                            if (wanted > receiveBuffer){
+                                receiveBuffer = wanted;
+                                log.message(String.format("event=RCVBUF conn=%08x size=%d", key.connId, transport.growReceiveBuffer((int)Math.min(Integer.MAX_VALUE, wanted))));
                             }
                         }
-
-
-
-                        printMessage(dup, responsePacket.getSeqno(), packetCond);
-
-                        if (responsePacket.getSeqno() == ackno && responsePacket.getCksum() != 1) {
-                            window[i] = responsePacket;
-                            ackno++;
-                            if (responsePacket.getData().length == 0){
-                                finalPacket = true;
-                                break;
+                        // a retransmitted SYN means the answer was lost, so it is answered again
+                        if (session != null){
+                            reply(transport, ack, buffer, key, PacketView.SYN_ACK, session.transfer.mss, session);
+                            nextSweep = Math.min(nextSweep, session.getDeadline());
+                        }
+                    }
+                    else if (view.getType() == PacketView.FIN){
+                        // the Sender only closes once everything is acked, so the stream is done and goes right
+                        // away, a FIN for a session already gone means the answer to the last one was lost
+                        if (session != null){
+                            sessions.remove(key);
+                            session.close();
+                            pending.remove(session);
+                            log.message(String.format("event=CLOSE conn=%08x", key.connId));
+                            try {
+                                session.transfer.streamFinished();
+                                if (session.transfer.isComplete() && transfers.remove(session.transfer.key, session.transfer)){
+                                    log.message(String.format("event=DONE transfer=%06x", session.transfer.key.connId));
+                                }
+                            } catch (IOException e) {
+                                log.message(String.format("event=FAIL conn=%08x error=%s", key.connId, e.getMessage()));
+                                transfers.remove(session.transfer.key, session.transfer);
+                                session.transfer.close();
                             }
                         }
+                        reply(transport, ack, buffer, key, PacketView.FIN_ACK, 0, null);
+                    }
+                    else if (view.getType() == PacketView.RESUME){
+                        if (session != null) list(transport, listing, buffer, key, session.transfer);
+                    }
+                    else if (view.getType() == PacketView.KEEPALIVE){
+                        // the Sender is waiting on its input, which only stops the session going idle,
+                        // and one for a session already gone is told to stop like data would be
+                        if (session != null){
+                            session.lastHeard = System.currentTimeMillis();
+                            log.sample("KEEP", key.connId, 0, "RECV");
+                        }
+                        else reply(transport, ack, buffer, key, PacketView.RESET, 0, null);
                     }
+                    continue;
+                }
 
-                    if (finalPacket) break;
+                // only a SYN opens a session, so a stray retransmission arriving after its session
+                // is gone can't truncate a finished file, and its Sender is told to stop rather than
+                // retransmit to a session that won't come back
+                if (session == null){
+                    reply(transport, ack, buffer, key, PacketView.RESET, 0, null);
+                    continue;
                 }
 
-                // write contents of window to file
-                for (CustomPacket packet: window){
-                    if (packet != null)writer.write(new String(packet.getData(), "US-ASCII"));
+                try {
+                    if (view.isParity()) session.onParity(transport, buffer, ack);
+                    else if (session.onPacket(transport, buffer, ack, batchSize > 1)) pending.add(session);
+                    nextSweep = Math.min(nextSweep, session.getDeadline());
+                } catch (IOException e) {
+                    // one failed transfer shouldn't take down the others
+                    log.message(String.format("event=FAIL conn=%08x error=%s", key.connId, e.getMessage()));
+                    sessions.remove(key);
+                    session.close();
+                    pending.remove(session);
+                    transfers.remove(session.transfer.key, session.transfer);
+                    session.transfer.close();
                 }
+            }
+            // the last batch may have ended the loop before its acks went out
+            flushAcks(transport, pending, ack);
 
-                // send ack to sender to move window
-                ackPacket = new CustomPacket(ackno, (short)0);
-                ackCond = "SENT";
-                sendAck = true;
-                if (rng.nextDouble() < dropCorruptRate){
-                    if (rng.nextInt() % 2 == 1){
-                        ackPacket.setCksum((short)1);
-                        ackCond = "ERRR";
-                    }
-                    else {
-                        sendAck = false;
-                        ackCond = "DROP";
-                    }
+        } catch (IOException e) {
+            if (!closed) e.printStackTrace();
+        } finally {
+            for (Transfer transfer: transfers.values()) transfer.close();
+            log.message("event=SUMMARY " + metrics.receiverSummary());
+            log.close();
+            metrics.unregister();
+        }
+    }
+
+    /**
+     * Opens a session for the stream whose SYN is in view. The first stream of a transfer
+     * settles its packet size, the smaller of what the Sender asked for and what this
+     * Receiver's buffers hold, and every later stream of it is held to the same size. Each
+     * stream gets the smaller of the two windows, selective repeat only if both sides want
+     * it, and the checksum its SYN was sealed with. Forward error correction is agreed to
+     * whenever it is asked for, with groups of at most half the window, and so is compression.
+     * So is resuming, for a transfer to a file, which holds it to the packet size of the
+     * checkpoint it carries on from.
+     *
+     * A SYN for a stream the transfer already has, with a first seqno other than the one it
+     * opened with, comes from a Sender that has been started again. What the old one sent is
+     * given up on, and the transfer starts over, from its checkpoint if it has one.
+     * @return the new session, null if the transfer's file or stream couldn't be opened, or the SYN is a stray copy
+     */
+    private Session connect(SessionKey lookup, Map<SessionKey, Session> sessions, Map<SessionKey, Transfer> transfers, List<Session> pending){
+        SessionKey key = new SessionKey(lookup.address, lookup.connId);
+        // streams of one file come from the same host with the same transfer id, each from its own port
+        SessionKey transferKey = new SessionKey(new InetSocketAddress(((InetSocketAddress)key.address).getAddress(), 0), PacketView.transferId(key.connId));
+        Transfer transfer = transfers.get(transferKey);
+        int stream = PacketView.streamIndex(key.connId);
+        if (transfer != null && transfer.streams == PacketView.streamCount(key.connId) && transfer.firstSeqnos[stream] == view.getFirstSeqno()) return null;
+        if (transfer != null && (transfer.streams != PacketView.streamCount(key.connId) || transfer.firstSeqnos[stream] != 0)){
+            Transfer stale = transfer;
+            log.message(String.format("event=RESTART transfer=%06x", transferKey.connId));
+            transfers.remove(transferKey);
+            sessions.values().removeIf(session -> session.transfer == stale && session.close());
+            pending.removeIf(session -> session.transfer == stale);
+            stale.close();
+            transfer = null;
+        }
+        try {
+            if (transfer == null){
+                if (handler != null && PacketView.streamCount(key.connId) > 1) throw new IOException("A transfer handed to a stream has to be sent as one");
+                boolean resume = handler == null && (view.getFlags() & PacketView.FLAG_RESUME) != 0;
+                transfer = new Transfer(transferKey, key.address, PacketView.streamCount(key.connId), Math.min(view.getMss(), packetSize), resume);
+                transfers.put(transferKey, transfer);
+                log.message(String.format("event=OPEN transfer=%06x from=%s file=%s mss=%d", transferKey.connId, key.address, transfer.path != null ? transfer.path : "-", transfer.mss));
+                if (transfer.received.size() > 0){
+                    log.message(String.format("event=RESUME transfer=%06x packets=%d runs=%d", transferKey.connId, transfer.received.count(), transfer.received.size()));
                 }
+            }
+            transfer.firstSeqnos[stream] = view.getFirstSeqno();
+        } catch (IOException e) {
+            log.message(String.format("event=FAIL transfer=%06x error=%s", transferKey.connId, e.getMessage()));
+            return null;
+        }
 
-                if (sendAck) socket.send(ackPacket.getPacket(response.getAddress(), response.getPort()));
-                System.out.println(String.format("[ACK.]: %3d [%s]", ackno, ackCond));
-
-                if (finalPacket) {
-                    boolean finalAckFail = true;
-                    socket.setSoTimeout(3000);
-                    while (finalAckFail) {
-                        try {
-                            socket.receive(response);
-
-                            ackPacket = new CustomPacket(ackno, (short)0);
-                            ackCond = "SENT";
-                            sendAck = true;
-                            if (rng.nextDouble() < dropCorruptRate){
-                                if (rng.nextInt() % 2 == 1){
-                                    ackPacket.setCksum((short)1);
-                                    ackCond = "ERRR";
-                                }
-                                else {
-                                    sendAck = false;
-                                    ackCond = "DROP";
-                                }
-                            }
+        int window = Math.max(1, Math.min(windowSize, view.getWindow()));
+        boolean selective = selectiveRepeat && (view.getFlags() & PacketView.FLAG_SACK) != 0;
+        int group = (view.getFlags() & PacketView.FLAG_FEC) != 0 ? Math.min(view.getFecGroup(), window / 2) : 0;
+        boolean compressed = (view.getFlags() & PacketView.FLAG_COMPRESS) != 0;
+        Session session = new Session(key, transfer, view.getFirstSeqno(), view.getOffset(), window, selective, group, compressed, PacketChecksum.of(view.buffer()));
+        sessions.put(key, session);
+        return session;
+    }
 
-                            if (sendAck) socket.send(ackPacket.getPacket(response.getAddress(), response.getPort()));
-                            System.out.println(String.format("[ACK.]: %3d [%s]", ackno, ackCond));
+    /**
+     * Answers a control packet, sealed with the same checksum it came with. The answer
+     * hands back whatever the packet carried in place of a first seqno.
+     * @param mss Packet size agreed to, or the size of the probe being answered
+     * @param session Session whose agreed window and features go in the answer, null for none
+     */
+    private void reply(Transport transport, PacketView reply, ByteBuffer packet, SessionKey key, int type, int mss, Session session) throws IOException {
+        PacketChecksum checksum = PacketChecksum.of(packet);
+        ByteBuffer buffer = reply.writeControl(key.connId, type, view.getFirstSeqno(), mss, 0).buffer();
+        if (session != null){
+            boolean resume = session.transfer.checkpoint != null;
+            reply.setFlags((session.selective ? PacketView.FLAG_SACK : 0) | (session.group > 0 ? PacketView.FLAG_FEC : 0) | (session.compressed ? PacketView.FLAG_COMPRESS : 0) | (resume ? PacketView.FLAG_RESUME : 0));
+            reply.setWindow(session.window.capacity());
+            reply.setOffset(session.transfer.received.size());
+            reply.setFecGroup(session.group);
+        }
+        checksum.seal(buffer);
+        String replyType = type == PacketView.SYN_ACK ? "SYNACK" : type == PacketView.FIN_ACK ? "FINACK" : type == PacketView.RESET ? "RESET." : "PRBACK";
+        transport.send(buffer, key.address);
+        log.sample(replyType, key.connId, mss, "SENT");
+    }
 
-                        } catch (SocketTimeoutException e) {
-                            finalAckFail = false;
-                        }
-                    }
-                    break;
-                }
+    /**
+     * Answers a RESUME with the runs of packets the transfer already had when it opened
+     * that end past the offset asked from, as many as fit
+     */
+    private void list(Transport transport, PacketView reply, ByteBuffer packet, SessionKey key, Transfer transfer) throws IOException {
+        PacketChecksum checksum = PacketChecksum.of(packet);
+        int from = view.getOffset();
+        int first = transfer.received.find(from);
+        int count = Math.min(transfer.received.size() - first, PacketView.maxRanges(transfer.mss));
+        ByteBuffer buffer = reply.writeControl(key.connId, PacketView.RESUME_ACK, view.getFirstSeqno(), transfer.mss, PacketView.RANGES - PacketView.HEADER_LENGTH + count * PacketView.RANGE_LENGTH).buffer();
+        reply.setOffset(from);
+        for (int i = 0; i < count; i++) reply.setRange(i, transfer.received.start(first + i), transfer.received.end(first + i));
+        checksum.seal(buffer);
+        transport.send(buffer, key.address);
+        log.sample("RSMACK", key.connId, from, "SENT");
+    }
+
+    /**
+     * Sends the acks held back during a batch, one per session. A session that is dropped
+     * leaves pending along with the session map, so its sink is never asked for room after
+     * it is closed.
+     */
+    private void flushAcks(Transport transport, List<Session> pending, PacketView ack) throws IOException {
+        for (Session session: pending) session.sendAck(transport, ack);
+        pending.clear();
+    }
+
+    /**
+     * Opens the transport, behind the link model if one is set or else the simulated drop rate if there is one
+     */
+    private Transport open() throws IOException {
+        Transport transport = transports.open(PORT);
+        LinkModel model = link != null ? link : dropCorruptRate > 0 ? LinkModel.dropCorrupt(dropCorruptRate) : null;
+        return model != null ? new ImpairedTransport(transport, model, seed, metrics) : transport;
+    }
+
+    /**
+     * Drops sessions that have gone idle without being closed, and gives up on
+     * transfers that went idle before every one of their streams finished
+     * @return earliest deadline among what is left, Long.MAX_VALUE if nothing is
+     */
+    private long sweep(Map<SessionKey, Session> sessions, Map<SessionKey, Transfer> transfers, List<Session> pending, long now){
+        long next = Long.MAX_VALUE;
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()){
+            Session session = it.next();
+            if (session.getDeadline() > now) next = Math.min(next, session.getDeadline());
+            else {
+                it.remove();
+                session.close();
+                pending.remove(session);
+                session.transfer.lastHeard = Math.max(session.transfer.lastHeard, session.lastHeard);
+                log.message(String.format("event=IDLE conn=%08x", session.key.connId));
             }
+        }
 
+        Iterator<Transfer> transferIt = transfers.values().iterator();
+        while (transferIt.hasNext()){
+            Transfer transfer = transferIt.next();
+            long deadline = transfer.lastHeard + idleTimeout;
+            for (Session session: sessions.values()){
+                if (session.transfer == transfer) deadline = Math.max(deadline, session.lastHeard + idleTimeout);
+            }
+            if (deadline > now) next = Math.min(next, deadline);
+            else {
+                transferIt.remove();
+                transfer.close();
+                log.message(String.format("event=IDLE transfer=%06x finished=%d/%d", transfer.key.connId, transfer.finished, transfer.streams));
+            }
+        }
+        return next;
+    }
 
-        } catch (SocketException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * @return file a transfer writes to, in server mode the transfer id goes in ahead of the extension
+     */
+    private Path outputPath(int transferId){
+        if (!server) return Paths.get(fileName);
+        int dot = fileName.lastIndexOf('.');
+        String id = String.format("-%06x", transferId);
+        return Paths.get(dot > 0 ? fileName.substring(0, dot) + id + fileName.substring(dot) : fileName + id);
+    }
+
+    /**
+     * Builds the SACK bitmap for the packets received past the base of window
+     */
+    private int sack(SlidingWindow window){
+        int sack = 0;
+        for (int i = 0; i < 32; i++){
+            if (window.isReceived(window.getBase() + 1 + i)) sack |= 1 << i;
+        }
+        return sack;
+    }
+
+    /**
+     * Sends an ack back to sender
+     * @param checksum Checksum to seal the ack with, the one agreed on for the stream
+     * @param selective true to send a SACK
+     * @param recovered Number of packets rebuilt from parity so far, to report with forward error correction on, otherwise -1
+     * @param advertised Number of packets past ackno there is room for, or -1 if there is always room for the window
+     */
+    private void sendAck(Transport transport, PacketView ackPacket, PacketChecksum checksum, int connId, int ackno, int sack, boolean selective, int recovered, int advertised, SocketAddress sender) throws IOException {
+        ByteBuffer buffer;
+        if (advertised >= 0) buffer = ackPacket.writeAck(connId, ackno, sack, Math.max(0, recovered), advertised).buffer();
+        else buffer = (recovered >= 0 ? ackPacket.writeAck(connId, ackno, sack, recovered) : ackPacket.writeAck(connId, ackno, sack, selective)).buffer();
+        checksum.seal(buffer);
+        transport.send(buffer, sender);
+        metrics.acksSent.increment();
+        log.sample("ACK.", connId, ackno, "SENT");
+    }
+
+    /**
+     * One file being received, over one or more parallel streams that all write through the same sink
+     */
+    private class Transfer {
+        private final SessionKey key;
+        private final Path path;
+        private final PacketSink output;
+        private final Checkpoint checkpoint;
+        private final ReceivedRanges received;
+        private final int streams;
+        private final int[] firstSeqnos;
+        private final int mss;
+        private final BufferPool pool;
+        private int finished = 0;
+        private long lastHeard = System.currentTimeMillis();
+
+        /**
+         * @param from Address of the stream that opened the transfer
+         * @param mss Largest packet size to agree to
+         * @param resume true to keep a checkpoint, and carry on from the one already kept if there is one
+         */
+        Transfer(SessionKey key, SocketAddress from, int streams, int mss, boolean resume) throws IOException {
+            this.key = key;
+            this.streams = streams;
+            firstSeqnos = new int[streams];
+            if (handler != null){
+                path = null;
+                checkpoint = null;
+                received = ReceivedRanges.NONE;
+                this.mss = mss;
+                pool = new BufferPool(PacketView.HEADER_LENGTH + mss + PacketChecksum.TRAILER_LENGTH, 0);
+                output = new StreamSink(handler.open(key.connId, from), () -> handler.failed(key.connId, from), mss, windowSize, pool);
+            }
+            else {
+                path = outputPath(key.connId);
+                Checkpoint saved = resume ? Checkpoint.load(path, key.connId, mss) : null;
+                checkpoint = saved != null ? saved : resume ? new Checkpoint(path, key.connId, mss) : null;
+                // taken before the sink starts adding to the checkpoint, so every stream numbers what is left the same way
+                received = checkpoint != null ? checkpoint.ranges() : ReceivedRanges.NONE;
+                this.mss = checkpoint != null ? checkpoint.getMss() : mss;
+                pool = new BufferPool(PacketView.HEADER_LENGTH + this.mss + PacketChecksum.TRAILER_LENGTH, 0);
+                output = new FileSink(path, this.mss, windowSize * streams, pool, checkpoint);
+            }
+        }
+
+        boolean isComplete() { return finished == streams; }
+
+        /**
+         * Called once for each stream whose last packet is in, the file is flushed when they all are
+         */
+        void streamFinished() throws IOException {
+            if (++finished == streams) output.close();
+        }
+
+        /**
+         * Gives up on the transfer, leaving what was written of it and its checkpoint if it keeps one
+         */
+        void close(){
+            output.abort();
+        }
+    }
+
+    /**
+     * State of one stream: what was agreed in its handshake, which seqnos have arrived,
+     * and when the session can be given up on
+     */
+    private class Session {
+        private final SessionKey key;
+        private final Transfer transfer;
+        private final SlidingWindow window;
+        private final boolean selective;
+        private final PacketChecksum checksum;
+        private final BufferPool pool;
+        private final int firstSeqno;
+        private final int offset;
+        private final int group;
+        private final boolean compressed;
+        private final ParityDecoder decoder;
+        private int recovered = 0;
+        private boolean ackPending = false;
+        private long lastHeard = System.currentTimeMillis();
+
+        /**
+         * @param offset Index in the file of the stream's first packet
+         * @param group Number of data packets to a parity group, 0 without forward error correction
+         * @param compressed true if the Sender may compress payloads, which the sink inflates
+         */
+        Session(SessionKey key, Transfer transfer, int firstSeqno, int offset, int window, boolean selective, int group, boolean compressed, PacketChecksum checksum){
+            this.key = key;
+            this.transfer = transfer;
+            this.firstSeqno = firstSeqno;
+            this.offset = offset;
+            this.selective = selective;
+            this.group = group;
+            this.compressed = compressed;
+            this.checksum = checksum;
+            pool = transfer.pool;
+            this.window = new SlidingWindow(window, firstSeqno, null);
+            decoder = group > 0 ? new ParityDecoder(window, transfer.mss) : null;
+            pool.grow(2 * window);
         }
 
+        /**
+         * Gives the session's share of the pool back once it is dropped
+         * @return true, so it can go in a removeIf
+         */
+        boolean close(){
+            pool.shrink(2 * window.capacity());
+            return true;
+        }
+
+        /**
+         * @return time the session is given up on unless something else arrives
+         */
+        long getDeadline() { return lastHeard + idleTimeout; }
+
+        /**
+         * Handles one data packet, copying it out of the receive buffer if it is accepted
+         * @param deferAck true to hold back the ack if the packet arrived in order, for sendAck() to send later
+         * @return true if an ack is now being held back that wasn't before
+         */
+        boolean onPacket(Transport transport, ByteBuffer buffer, PacketView ack, boolean deferAck) throws IOException {
+            PacketView view = Receiver.this.view;
+            int seqno = view.getSeqno();
+            int ackno = window.getBase();
+            String packetCond;
+            lastHeard = System.currentTimeMillis();
+            metrics.packetsReceived.increment();
+
+            if (view.getPayloadLength() > transfer.mss) {
+                log.sample("RECV", key.connId, seqno, "!Siz");
+                return false;
+            }
+
+            // in selective repeat anything new inside the window is accepted and goes straight
+            // to the sink, otherwise only the next packet in order is, or with forward error
+            // correction one from the same group that its parity may yet complete
+            boolean dup = seqno < ackno || window.isReceived(seqno);
+            boolean grouped = decoder != null && (seqno - firstSeqno) / group == (ackno - firstSeqno) / group;
+            boolean accept = !dup && (seqno == ackno || ((selective || grouped) && window.contains(seqno)));
+            // a stream whose reader has fallen behind has no room for it, which the ack tells the Sender
+            boolean full = accept && transfer.output.room() == 0;
+            accept &= !full;
+            if (full) packetCond = "Full";
+            else if (dup || seqno == ackno) packetCond = "RECV";
+            else if (accept) packetCond = "ERLY";
+            else packetCond = selective ? "!Wnd" : "!Seq";
+            log.sample(dup ? "DUPL" : "RECV", key.connId, seqno, packetCond);
+            if (dup) metrics.duplicatePackets.increment();
+            else if (!accept) metrics.outOfWindow.increment();
+
+            if (accept && window.markReceived(seqno)){
+                metrics.bytesReceived.add(view.getPayloadLength());
+                if (decoder != null) decoder.add(seqno, buffer, view.getPayloadLength());
+                transfer.output.write(pool.acquire().put(buffer.duplicate()).flip());
+            }
+            window.slide();
+
+            // a gap in the group this packet belongs to may yet be filled from its parity
+            if (accept && grouped && seqno > ackno) return false;
+
+            // every packet gets a cumulative ack so the Sender's window keeps sliding, though one
+            // that came in order may share it with the rest of its batch
+            if (deferAck && accept && seqno == ackno){
+                boolean added = !ackPending;
+                ackPending = true;
+                return added;
+            }
+            sendAck(transport, ack);
+            return false;
+        }
+
+        /**
+         * Handles one parity packet, rebuilding the packet it covers that is missing if
+         * there is only one. If anything was missing an ack goes out either way, to report
+         * the rebuilt packet or to show the gap that is left. Parity for a stream that didn't
+         * agree to forward error correction is dropped.
+         */
+        void onParity(Transport transport, ByteBuffer buffer, PacketView ack) throws IOException {
+            PacketView parity = Receiver.this.view;
+            if (decoder == null){
+                log.sample("PRTY", key.connId, parity.getParityFirst(), "!FEC");
+                return;
+            }
+            lastHeard = System.currentTimeMillis();
+            int missing = 0;
+            int lost = -1;
+            for (int i = 0, seqno = parity.getParityFirst(); i < parity.getParityCount(); i++, seqno += parity.getParityStride()){
+                if (!window.isReceived(seqno)){
+                    missing++;
+                    lost = seqno;
+                }
+            }
 
+            ByteBuffer payload = missing == 1 && window.contains(lost) && transfer.output.room() > 0 ? decoder.rebuild(parity, lost) : null;
+            log.sample("PRTY", key.connId, parity.getParityFirst(), payload != null ? "FIXD" : missing == 0 ? "NONE" : "LOST");
+            if (payload != null){
+                ByteBuffer packet = rebuiltView.wrap(pool.acquire()).writeData(key.connId, transfer.received.index(offset, lost - firstSeqno), lost, payload, payload.remaining()).buffer();
+                if (decoder.isCompressed()) rebuiltView.setCompressed();
+                window.markReceived(lost);
+                decoder.add(lost, packet, payload.limit());
+                metrics.bytesReceived.add(payload.limit());
+                metrics.packetsRecovered.increment();
+                recovered++;
+                transfer.output.write(packet);
+                window.slide();
+            }
+            if (missing > 0 && !ackPending) sendAck(transport, ack);
+        }
+
+        /**
+         * Sends a cumulative ack for everything received so far, with the room left in a sink that can fill up
+         */
+        void sendAck(Transport transport, PacketView ack) throws IOException {
+            ackPending = false;
+            int room = transfer.output.room();
+            Receiver.this.sendAck(transport, ack, checksum, key.connId, window.getBase(), selective ? sack(window) : 0, selective, decoder != null ? recovered : -1, room < Integer.MAX_VALUE ? room : -1, key.address);
+        }
     }
 
-    private void printMessage(boolean dup, int seqno, String packetCond){
-        System.out.println(String.format("[%s]: %3d [%s]", dup ? "DUPL" : "RECV", seqno, packetCond));
+    /**
+     * Sessions are told apart by where they come from and the connection id the Sender picked,
+     * transfers by the Sender's host and transfer id. The receive loop looks sessions up with
+     * one key it sets for every packet, so only the keys stored in the maps are left alone.
+     */
+    private static final class SessionKey {
+        private SocketAddress address;
+        private int connId;
+
+        SessionKey(SocketAddress address, int connId){
+            set(address, connId);
+        }
+
+        SessionKey set(SocketAddress address, int connId){
+            this.address = address;
+            this.connId = connId;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if (!(o instanceof SessionKey)) return false;
+            SessionKey other = (SessionKey)o;
+            return connId == other.connId && address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode(){ return 31 * address.hashCode() + connId; }
     }
 
-    static class Builder {
+    public static class Builder {
         private Receiver receiver;
 
         public Builder(){ receiver = new Receiver(); }
 
-        public void setWindowSize(int size) {receiver.windowSize = size;}
+        public void setPacketSize(int size) {receiver.packetSize = size;}
+        public void setWindowSize(int size) {receiver.windowSize = Math.max(1, size);}
+        public void setFileName(String fileName) {receiver.fileName = fileName;}
         public void setDropCorruptRate(double rate){ receiver.dropCorruptRate = rate; }
+        public void setSelectiveRepeat(boolean selectiveRepeat){ receiver.selectiveRepeat = selectiveRepeat; }
         public void setPort(int port) {receiver.PORT = port; }
+        public void setServer(boolean server) {receiver.server = server; }
+        public void setIdleTimeout(int timeout) {receiver.idleTimeout = timeout; }
+        public void setLogSampling(int rate) {receiver.logSampling = rate; }
+        public void setBatchSize(int size) {receiver.batchSize = Math.max(1, size); }
+        public void setTransport(Transport.Factory factory) {receiver.transports = factory; }
+        public void setHandler(TransferHandler handler) {receiver.handler = handler; }
+        public void setLogStream(PrintStream out) {receiver.out = out; }
+        public void setLink(LinkModel link, long seed) {
+            receiver.link = link;
+            receiver.seed = seed;
+        }
         public void setAddress(String addr){
             try {
                 receiver.address = InetAddress.getByName(addr);
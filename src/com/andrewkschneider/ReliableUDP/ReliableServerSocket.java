@@ -0,0 +1,185 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * ReliableServerSocket receives transfers into memory rather than files,
+ * running a Receiver in server mode on a thread of its own. Each transfer
+ * that comes in is handed out as a stream from accept(), or read whole
+ * through receive().
+ *
+ * Each stream is fed through a pipe in order. A reader that falls behind
+ * fills the queue in front of its pipe, and the Receiver then drops that
+ * transfer's packets and advertises no room in its acks, so the Sender waits
+ * on it while every other transfer on the socket carries on. A stream whose
+ * transfer is given up on ends with an IOException rather than a plain end
+ * of stream.
+ */
+public class ReliableServerSocket implements Closeable {
+
+    // handed to accept() once the socket is closed
+    private static final InputStream CLOSED = InputStream.nullInputStream();
+
+    private final Receiver receiver;
+    private final BlockingQueue<InputStream> accepted = new LinkedBlockingQueue<>();
+    private final Map<List<Object>, TransferStream> open = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "ReliableServerSocket");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed = false;
+
+    /**
+     * @throws IOException if the port can't be bound
+     */
+    public ReliableServerSocket(int port) throws IOException {
+        this(port, builder -> {});
+    }
+
+    /**
+     * @param options Called on the Receiver's Builder, for the window, packet size and the like
+     * @throws IOException if the port can't be bound
+     */
+    public ReliableServerSocket(int port, Consumer<Receiver.Builder> options) throws IOException {
+        Receiver.Builder builder = new Receiver.Builder();
+        builder.setPort(port);
+        builder.setSelectiveRepeat(true);
+        builder.setLogSampling(0);
+        builder.setLogStream(new PrintStream(OutputStream.nullOutputStream()));
+        options.accept(builder);
+        builder.setServer(true);
+        builder.setHandler(new TransferHandler() {
+            @Override
+            public WritableByteChannel open(int transferId, SocketAddress sender) throws IOException {
+                return ReliableServerSocket.this.open(transferId, sender);
+            }
+
+            @Override
+            public void failed(int transferId, SocketAddress sender){
+                TransferStream stream = open.remove(Arrays.asList(transferId, sender));
+                if (stream != null) stream.failed = true;
+            }
+        });
+        receiver = builder.create();
+        receiver.bind();
+
+        Thread thread = new Thread(receiver::receive, "Receiver-" + port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return counters of the Receiver underneath
+     */
+    public Metrics getMetrics() { return receiver.getMetrics(); }
+
+    /**
+     * Waits for the next transfer to open
+     * @return stream of the transfer's bytes, ending once all of them have arrived
+     * @throws SocketException if the socket is closed
+     */
+    public InputStream accept() throws IOException {
+        try {
+            InputStream in = closed ? CLOSED : accepted.take();
+            if (in == CLOSED){
+                accepted.offer(CLOSED);
+                throw new SocketException("Socket closed");
+            }
+            return in;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a transfer");
+        }
+    }
+
+    /**
+     * Reads the next transfer whole
+     * @return future completed with the transfer's bytes, or with the IOException that ended it
+     */
+    public CompletableFuture<byte[]> receive(){
+        return CompletableFuture.supplyAsync(() -> {
+            try (InputStream in = accept()){
+                return in.readAllBytes();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private WritableByteChannel open(int transferId, SocketAddress sender) throws IOException {
+        Pipe pipe = Pipe.open();
+        List<Object> key = Arrays.asList(transferId, sender);
+        TransferStream stream = new TransferStream(Channels.newInputStream(pipe.source()), key);
+        open.put(key, stream);
+        accepted.add(stream);
+        return pipe.sink();
+    }
+
+    /**
+     * Stops the Receiver, cutting short any transfer still going
+     */
+    @Override
+    public void close(){
+        closed = true;
+        receiver.close();
+        accepted.offer(CLOSED);
+        executor.shutdown();
+    }
+
+    /**
+     * A transfer's bytes, turning the end of a transfer that was given up on into an IOException
+     */
+    private class TransferStream extends FilterInputStream {
+        private final List<Object> key;
+        private volatile boolean failed = false;
+
+        TransferStream(InputStream in, List<Object> key){
+            super(in);
+            this.key = key;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return check(super.read());
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return check(super.read(b, off, len));
+        }
+
+        private int check(int n) throws IOException {
+            if (n < 0 && failed) throw new IOException("Transfer was cut short");
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open.remove(key, this);
+            super.close();
+        }
+    }
+}
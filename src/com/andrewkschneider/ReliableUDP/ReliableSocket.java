@@ -0,0 +1,126 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * ReliableSocket sends data held in memory to a Receiver, or to a
+ * ReliableServerSocket, without going through a file. Every message or
+ * stream is a transfer of its own, run by a Sender on a thread of this
+ * socket's, so any number of them can be going at once.
+ *
+ * A stream from openStream() is read by the Sender through a pipe, so
+ * writes block once the Sender's window is full and its acks stop coming,
+ * which keeps a fast writer from running ahead of the network. Bytes go out
+ * a packet at a time, the last part packet once the stream is closed.
+ *
+ * Senders are set up with selective repeat and no logging unless the
+ * options say otherwise.
+ */
+public class ReliableSocket implements Closeable {
+
+    private final String host;
+    private final int port;
+    private final Consumer<Sender.Builder> options;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "ReliableSocket");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @throws IOException if host can't be resolved
+     */
+    public ReliableSocket(String host, int port) throws IOException {
+        this(host, port, builder -> {});
+    }
+
+    /**
+     * @param options Called on the Builder of every transfer's Sender, for the window, FEC and the like
+     * @throws IOException if host can't be resolved
+     */
+    public ReliableSocket(String host, int port, Consumer<Sender.Builder> options) throws IOException {
+        this.host = InetAddress.getByName(host).getHostAddress();
+        this.port = port;
+        this.options = options;
+    }
+
+    /**
+     * Starts a transfer of whatever is written to the stream. Closing the stream waits for
+     * all of it to be acked
+     * @throws IOException from close() if the transfer failed, and from a write once it has
+     */
+    public OutputStream openStream() throws IOException {
+        Pipe pipe = Pipe.open();
+        CompletableFuture<Void> done = start(pipe.source());
+        OutputStream out = Channels.newOutputStream(pipe.sink());
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException { out.write(b); }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+                try {
+                    done.join();
+                } catch (CompletionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+                }
+            }
+        };
+    }
+
+    /**
+     * Sends one message as a transfer of its own
+     * @return future completed once the whole message has been acked, or with the IOException that ended it
+     */
+    public CompletableFuture<Void> send(byte[] message){
+        return start(Channels.newChannel(new ByteArrayInputStream(message)));
+    }
+
+    private CompletableFuture<Void> start(ReadableByteChannel input){
+        Sender.Builder builder = Sender.Builder();
+        builder.setReceiverIp(host);
+        builder.setPort(port);
+        builder.setSelectiveRepeat(true);
+        builder.setLogSampling(0);
+        builder.setLogStream(new PrintStream(OutputStream.nullOutputStream()));
+        options.accept(builder);
+        builder.setInput(input);
+        Sender sender = builder.create();
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                sender.transfer();
+                done.complete(null);
+            } catch (IOException | RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+
+    /**
+     * Lets the transfers already started finish, but starts no more
+     */
+    @Override
+    public void close(){
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,22 @@
+package com.andrewkschneider.ReliableUDP;
+
+/**
+ * RenoController is classic AIMD: one extra packet per round trip in
+ * congestion avoidance, half the window on a loss.
+ */
+public class RenoController extends AbstractCongestionController {
+
+    public RenoController(int initialWindow, int initialThreshold){
+        super(initialWindow, initialThreshold);
+    }
+
+    @Override
+    protected void congestionAvoidance(int acked, double srtt){
+        cwnd += (double)acked / cwnd;
+    }
+
+    @Override
+    protected double reduce(){
+        return cwnd / 2;
+    }
+}
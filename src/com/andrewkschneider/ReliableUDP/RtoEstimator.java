@@ -0,0 +1,67 @@
+package com.andrewkschneider.ReliableUDP;
+
+/**
+ * RtoEstimator keeps a smoothed round trip time and its variance from RTT
+ * samples (Jacobson/Karels, as in RFC 6298) and turns them into the
+ * retransmission timeout the Sender uses.
+ *
+ * Callers are expected to follow Karn's rule and only sample segments that
+ * were never retransmitted. Every timeout doubles the RTO until a fresh
+ * sample comes in.
+ */
+class RtoEstimator {
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+
+    // clock granularity, keeps the RTO from collapsing onto SRTT when the variance is tiny
+    private static final double GRANULARITY = 1;
+
+    private final long minTimeout;
+    private final long maxTimeout;
+    private double srtt = -1;
+    private double rttvar;
+    private long timeout;
+
+    /**
+     * @param initialTimeout RTO in ms to use before the first sample
+     * @param minTimeout Lower bound on the RTO in ms
+     * @param maxTimeout Upper bound on the RTO in ms, also caps backoff
+     */
+    RtoEstimator(long initialTimeout, long minTimeout, long maxTimeout){
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        timeout = clamp(initialTimeout);
+    }
+
+    public long getTimeout() { return timeout; }
+    public double getSrtt() { return srtt; }
+    public double getRttvar() { return rttvar; }
+
+    /**
+     * Folds a new round trip measurement into the estimate
+     * @param rtt Measured round trip in ms, from a segment that was sent exactly once
+     */
+    public void sample(double rtt){
+        if (srtt < 0){
+            srtt = rtt;
+            rttvar = rtt / 2;
+        }
+        else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        timeout = clamp((long)Math.ceil(srtt + Math.max(GRANULARITY, 4 * rttvar)));
+    }
+
+    /**
+     * Doubles the RTO after a retransmission timeout
+     */
+    public void backoff(){
+        timeout = clamp(timeout * 2);
+    }
+
+    private long clamp(long value){
+        return Math.max(minTimeout, Math.min(maxTimeout, value));
+    }
+}
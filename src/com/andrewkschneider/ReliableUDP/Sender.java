@@ -3,13 +3,24 @@ package com.andrewkschneider.ReliableUDP;
 import org.apache.commons.cli.*;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.Duration;
-import java.time.Instant;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
 
 /**
  * Sender builds on unreliable UDP datagram packets to create a reliable file
@@ -19,22 +30,101 @@ import java.util.Random;
  */
 public class Sender {
 
+    private static final String SEND = "SENDing";
+    private static final String RESEND = "ReSend.";
+    private static final String SYN = "SYN....";
+    private static final String PROBE = "PROBE..";
+    private static final String FIN = "FIN....";
+    private static final String PARITY = "Parity.";
+    private static final String RESUME = "RESUME.";
+    private static final String KEEPALIVE = "KEEPALV";
+
+    // pacing runs a little ahead of cwnd per RTT so the window can still grow, and lets through
+    // bursts of up to PACING_BURST ns worth of the rate since waits can't be timed much finer
+    private static final double PACING_GAIN = 1.25;
+    private static final long PACING_BURST = 250_000;
+
+    // a SYN or FIN is given up on after this many tries, the RTO backing off between them
+    private static final int SYN_RETRIES = 6;
+
+    // a stream waiting on its input checks back this often in ms, and with nothing in flight
+    // sends a KEEPALIVE once it has been quiet for KEEPALIVE_INTERVAL ms
+    private static final long STARVED_WAIT = 1;
+    private static final long KEEPALIVE_INTERVAL = 1000;
+
+    // while the Receiver has no room the base goes again as a probe, at intervals that double
+    // from the RTO up to PERSIST_MAX ms
+    private static final long PERSIST_MAX = 1000;
+
+    // link MTUs worth probing for, jumbo frames, Ethernet and the IPv6 minimum
+    private static final int[] PROBE_MTUS = {9000, 1500, 1280};
+
+    // adaptive FEC sends enough parity for FEC_MARGIN times the losses a group is expected to see,
+    // going by a moving average of the loss rate that gives each new group a weight of FEC_GAIN
+    private static final double FEC_MARGIN = 2;
+    private static final double FEC_GAIN = 0.125;
+
     private static String cmdLineSyntax = "java -cp \"commons-cli-1.4.jar;.\" com.andrewkschneider.ReliableUDP.Sender [options] receiver_ip_address receiver_port";
     private InetAddress receiverIp;
-    private int packetSize = 500;
+    private int packetSize = 1452;
+    private boolean probeMtu = false;
+    private int mss;
     private int timeoutLength = 2000;
+    private int minTimeout = 200;
+    private int maxTimeout = 60000;
+    private int idleTimeout = 60000;
     private int windowSize = 5;
     private double dropCorruptRate = 0;
     private int PORT = 13;
     private String fileName = "outgoing.txt";
-    private int sleepTime = 500;
+    private int logSampling = 1;
+    private boolean pacing = false;
+    private long rateLimit = 0;
+    private TokenBucket limiter;
+    private boolean selectiveRepeat = false;
+    private int fecGroup = 0;
+    private int fecParity = 0;
+    private boolean adaptiveFec = false;
+    private boolean compression = false;
+    private boolean resume = false;
+    private ReceivedRanges received = ReceivedRanges.NONE;
+    private Transport.Factory transports = DatagramTransport::new;
+    private LinkModel link;
+    private long seed = System.nanoTime();
+    private ReadableByteChannel input;
+    private PrintStream out = System.out;
+    private volatile IOException failure;
+    private String congestionControl = "reno";
+    private PacketChecksum checksum = PacketChecksum.CRC32C;
+    private Supplier<CongestionController> controllerFactory;
+    private int connId = 0;
+    private int streams = 1;
+    private volatile Flow[] flows = new Flow[0];
+    private final Metrics metrics = new Metrics();
+    private EventLog log;
 
     public static void main(String[] args){
         Options options = new Options();
-        options.addOption("s", true, "Packet size");
-        options.addOption("t", true, "Timeout length in ms");
-        options.addOption("w", true, "Window size");
+        options.addOption("s", true, "Largest packet payload to ask for, the Receiver may agree to less");
+        options.addOption("mtu", false, "Probe the path MTU and step the packet size down until it gets through");
+        options.addOption("f", true, "File to send, - for stdin");
+        options.addOption("t", true, "Initial timeout length in ms, adjusted from measured RTT afterwards");
+        options.addOption("tmin", true, "Minimum timeout length in ms, 200 by default, lower it on a low-latency LAN");
+        options.addOption("tmax", true, "Maximum timeout length in ms");
+        options.addOption("i", true, "Time in ms after which a transfer the Receiver has stopped answering is given up on");
+        options.addOption("w", true, "Largest window to ask for, the Receiver may agree to less");
         options.addOption("d", true, "Percentage of packets to drop or corrupt, expressed as a decimal");
+        options.addOption("c", true, "Congestion control algorithm, reno or cubic");
+        options.addOption("n", true, "Number of parallel streams to split the file across, up to 16");
+        options.addOption("r", false, "Ask for selective repeat with SACK instead of resending the whole window");
+        options.addOption("k", true, "Checksum, crc32c or the shorter but weaker 16-bit internet checksum");
+        options.addOption("v", true, "Log one in every n packet events, 0 to log none");
+        options.addOption("p", false, "Pace packets evenly over the RTT instead of sending the window in a burst");
+        options.addOption("b", true, "Cap on the send rate in bytes per second, across every stream");
+        options.addOption("fec", true, "Forward error correction as n:k, k XOR parity packets after every n data packets");
+        options.addOption("fa", false, "Adapt the number of parity packets to the loss rate, up to the k given with -fec");
+        options.addOption("z", false, "Deflate each payload on its own when it makes it smaller");
+        options.addOption("resume", false, "Have the Receiver keep a checkpoint, and send only what it is missing when started again");
 
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
@@ -51,9 +141,28 @@ public class Sender {
         Builder builder = new Builder();
         if (cmd != null) {
             if (cmd.hasOption("s")) builder.setPacketSize(Integer.parseInt(cmd.getOptionValue("s")));
+            if (cmd.hasOption("mtu")) builder.setProbeMtu(true);
+            if (cmd.hasOption("f")) builder.setFileName(cmd.getOptionValue("f"));
             if (cmd.hasOption("t")) builder.setTimeout(Integer.parseInt(cmd.getOptionValue("t")));
+            if (cmd.hasOption("tmin")) builder.setMinTimeout(Integer.parseInt(cmd.getOptionValue("tmin")));
+            if (cmd.hasOption("tmax")) builder.setMaxTimeout(Integer.parseInt(cmd.getOptionValue("tmax")));
+            if (cmd.hasOption("i")) builder.setIdleTimeout(Integer.parseInt(cmd.getOptionValue("i")));
             if (cmd.hasOption("w")) builder.setWindowSize(Integer.parseInt(cmd.getOptionValue("w")));
             if (cmd.hasOption("d")) builder.setDropCorruptRate(Double.parseDouble(cmd.getOptionValue("d")));
+            if (cmd.hasOption("r")) builder.setSelectiveRepeat(true);
+            if (cmd.hasOption("c")) builder.setCongestionControl(cmd.getOptionValue("c"));
+            if (cmd.hasOption("n")) builder.setStreams(Integer.parseInt(cmd.getOptionValue("n")));
+            if (cmd.hasOption("k")) builder.setChecksum(cmd.getOptionValue("k"));
+            if (cmd.hasOption("v")) builder.setLogSampling(Integer.parseInt(cmd.getOptionValue("v")));
+            if (cmd.hasOption("p")) builder.setPacing(true);
+            if (cmd.hasOption("b")) builder.setRateLimit(Long.parseLong(cmd.getOptionValue("b")));
+            if (cmd.hasOption("fec")){
+                String[] ratio = cmd.getOptionValue("fec").split(":");
+                builder.setFec(Integer.parseInt(ratio[0]), ratio.length > 1 ? Integer.parseInt(ratio[1]) : 1);
+            }
+            if (cmd.hasOption("fa")) builder.setAdaptiveFec(true);
+            if (cmd.hasOption("z")) builder.setCompression(true);
+            if (cmd.hasOption("resume")) builder.setResume(true);
         } else throw new NullPointerException("CommandLine cmd is null");
         if (cmd.getArgs().length < 2){
             System.out.println("Receiver IP and port are required");
@@ -70,127 +179,681 @@ public class Sender {
 
     public Sender(){}
 
+    /**
+     * @return current congestion window in packets, summed over every stream, 0 before send() has started
+     */
+    public int getCongestionWindow(){
+        int cwnd = 0;
+        for (Flow flow: flows){
+            CongestionController controller = flow.controller;
+            if (controller != null) cwnd += controller.getWindow();
+        }
+        return cwnd;
+    }
+
+    /**
+     * @return counters and latencies of this Sender, also published over JMX while send() runs
+     */
+    public Metrics getMetrics() { return metrics; }
+
+    /**
+     * Sends the file, split into byte ranges across parallel streams if more than
+     * one was asked for. Each stream has its own socket, window, timers and
+     * congestion control on its own thread, and a seqno range of its own that
+     * starts where its bytes sit in the file, so the Receiver can put every
+     * payload in place no matter which stream carried it.
+     *
+     * The first stream's handshake settles the segment size before the file
+     * is cut up, so the cuts fall on packet boundaries of the size actually
+     * used. The other streams are then told the same size by the Receiver.
+     * Every stream is closed with a FIN once all of it has been acked.
+     *
+     * A resumable transfer takes its transfer id from the file's name, size
+     * and modification time, so sending the same file again lands on the
+     * same transfer at the Receiver. If the Receiver has a checkpoint for it,
+     * the first stream lists what it already has, and only the packets left
+     * are split across the streams and sent.
+     *
+     * Anything that goes wrong is printed and ends the JVM, see transfer() for a
+     * version that throws instead.
+     */
     public void send(){
-        try (DatagramSocket socket = new DatagramSocket(0)){
+        try {
+            transfer();
+        } catch (ConnectException e) {
+            System.out.println(e.getMessage());
+            System.exit(0);
+        } catch (SocketException e) {
+            System.out.println("Unable to bind socket");
+            System.exit(0);
+        } catch (IOException e) {
+            System.out.println("Problem reading file");
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Sends the file or input like send(), returning once every stream has been acked
+     * and closed. If any stream fails the others give up too.
+     * @throws ConnectException if the Receiver never answers, stops answering for the idle
+     * timeout or resets a stream because it has no session for it
+     * @throws IOException if the input can't be read or a socket can't be opened
+     */
+    public void transfer() throws IOException {
+        Path path = input != null || fileName.equals("-") ? null : Paths.get(fileName);
+        boolean resumable = path != null && Files.isRegularFile(path);
+        int transferId = connId != 0 ? PacketView.transferId(connId) : resume && resumable ? fileId(path) : new SecureRandom().nextInt() >>> 8;
+        log = new EventLog(logSampling, 8192, out);
+        metrics.register(String.format("type=Sender,id=%06x", transferId));
+        if (resume && !resumable){
+            log.message("Only regular files can be resumed, sending without a checkpoint");
+            resume = false;
+        }
+        limiter = rateLimit > 0 ? new TokenBucket(rateLimit, burst(rateLimit, PacketView.HEADER_LENGTH + packetSize + checksum.trailerLength())) : null;
 
-            DatagramPacket response = new DatagramPacket(new byte[2048], 2048);
-            CustomPacket responsePacket = null;
-            socket.setSoTimeout(timeoutLength);
-            CustomPacket[] window = new CustomPacket[windowSize];
-            ByteBuffer messageBuffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(fileName)));
-            boolean lastPacket = false;
-            int seqno = 1;
-            int lastAck = 0;
-            String ackCond;
+        Flow first = null;
+        try {
+            if (streams > 1 && (path == null || !Files.isRegularFile(path))){
+                log.message("Only regular files can be split into streams, sending as one");
+                streams = 1;
+            }
 
-            Random rng = new Random();
-            String sendCondition;
-            short cksum;
-            boolean sendPacket = true;
+            // a smaller segment size only means more packets, so every stream still gets at least one
+            long size = streams > 1 || resume ? Files.size(path) : 0;
+            int count = (int)Math.min(streams, Math.max(1, (size + packetSize - 1) / packetSize));
+            first = new Flow(null, PacketView.connId(transferId, 0, count), 0);
+            mss = first.connect(packetSize, probeMtu);
+            if (first.savedRuns > 0) received = first.listReceived();
 
-            Instant start = Instant.now();
+            if (count == 1 && received.size() == 0){
+                first.payloads = input != null ? new StreamSource(input, mss) : PayloadSource.open(fileName, mss);
+                flows = new Flow[]{ first };
+            }
+            else {
+                // streams are cut on packet boundaries so every seqno maps to the same offset whichever stream sends it,
+                // and share out only the packets the Receiver is missing
+                int packets = (int)Math.max(1, (size + mss - 1) / mss);
+                int left = received.missing(packets);
+                if (received.size() > 0) log.message(String.format("Resuming with %d of %d packets left to send", left, packets));
+                Flow[] flows = new Flow[count];
+                for (int i = 0; i < count; i++){
+                    int start = (int)((long)i * left / count);
+                    int end = (int)((long)(i + 1) * left / count);
+                    // the first stream opened at 0 before anything was known, which numbers what is left the same way
+                    int offset = i == 0 ? 0 : received.index(0, start);
+                    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+                    List<PayloadSource> runs = new ArrayList<>();
+                    for (int[] run: received.missingRuns(offset, end - start)){
+                        runs.add(new MappedFileSource(channel, Math.min(size, (long)run[0] * mss), Math.min(size, (long)run[1] * mss)));
+                    }
+                    PayloadSource range = runs.size() == 1 ? runs.get(0) : new ChainedSource(runs, channel);
+                    if (i == 0) first.payloads = range;
+                    else flows[i] = new Flow(range, PacketView.connId(transferId, i, count), offset);
+                }
+                flows[0] = first;
+                this.flows = flows;
+            }
+        } catch (IOException e) {
+            if (first != null && first.transport != null) first.transport.close();
+            if (input != null) input.close();
+            log.close();
+            metrics.unregister();
+            throw e;
+        }
 
-            while (true){
-                // reset window data
-                for (int i = 0; i < window.length; i++) window[i] = null;
+        Thread[] threads = new Thread[flows.length];
+        for (int i = 0; i < flows.length; i++){
+            threads[i] = new Thread(flows[i], "Sender-" + i);
+            threads[i].start();
+        }
+        for (Thread thread: threads){
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
 
-                // read in from file data and create packets to populate window
-                for (int i = 0; i < window.length; i++){
+        log.message("event=SUMMARY " + metrics.senderSummary());
+        log.close();
+        metrics.unregister();
+        if (failure != null) throw failure;
+    }
 
-                    cksum = (short)0;
-                    sendCondition = "SENT";
+    /**
+     * One stream of a transfer, with its own socket and sequence space. Its seqnos
+     * start at a random first seqno, and every packet also carries its index in
+     * the file, counted from the stream's offset.
+     */
+    private class Flow implements Runnable {
+        private PayloadSource payloads;
+        private final int connId;
+        private final int offset;
+        private final int firstSeqno;
+        private volatile CongestionController controller;
+        private int window;
+        private boolean selective;
+        private ParityEncoder parity;
+        private ByteBuffer parityPacket;
+        private PayloadCompressor compressor;
+        private double lossRate = 0;
+        private int resent = 0;
+        private int recovered = 0;
+        private int lastRecovered = 0;
+        private final PacketView view = new PacketView();
+        private final Random rng = new Random();
+        private final TokenBucket pacer;
+        private final RtoEstimator rto = new RtoEstimator(timeoutLength, minTimeout, maxTimeout);
+        private final InetSocketAddress receiver = new InetSocketAddress(receiverIp, PORT);
+        private Transport transport;
+        private int segmentSize;
+        private long lastSent = System.currentTimeMillis();
+
+        // runs of packets the Receiver already has, going by its SYN-ACK
+        private int savedRuns = 0;
+
+        /**
+         * @param offset Index in the file of the stream's first packet
+         */
+        Flow(PayloadSource payloads, int connId, int offset){
+            this.payloads = payloads;
+            this.connId = connId;
+            this.offset = offset;
+            // kept clear of 0, which marks control packets, and far enough from overflowing for any file
+            firstSeqno = 1 + rng.nextInt(1 << 30);
+
+            // unlimited until there is an RTT to pace over
+            pacer = pacing ? new TokenBucket(Long.MAX_VALUE, Long.MAX_VALUE) : null;
+        }
 
-                    byte[] payload = new byte[packetSize > messageBuffer.remaining()? messageBuffer.remaining() : packetSize];
+        @Override
+        public void run(){
+            try {
+                if (transport == null && connect(mss, false) != mss) throw new IOException("Receiver changed the packet size");
+                try (Transport transport = this.transport; PayloadSource payloads = this.payloads){
+                    send(transport, payloads);
+                }
+            } catch (IOException e) {
+                // the first failure is the one reported, and the other streams stop at it
+                synchronized (Sender.this){
+                    if (failure == null) failure = e;
+                }
+                try {
+                    if (transport != null) transport.close();
+                    if (payloads != null) payloads.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
 
-                    if (messageBuffer.hasRemaining())messageBuffer.get(payload, 0, payload.length);
-                    else {
-                        payload = new byte[0];
-                        lastPacket = true;
+        /**
+         * Opens the stream's socket and agrees on its settings with the Receiver. The SYN asks for
+         * a packet size, a window and selective repeat if it is on, and the SYN-ACK answers with
+         * what the Receiver agrees to, never more than was asked for. Forward error correction is
+         * asked for the same way, and the Receiver answers with the group size it will expect,
+         * no more than half the window so a group's packets are still around when its parity
+         * arrives. Compression and resuming are asked for and agreed to the same way, and a
+         * Receiver that agrees to resume says how many runs of packets it already has. The
+         * checksum the SYN is sealed with is the one the Receiver uses for the rest of the stream.
+         * With probing on, the largest packet size that makes it through is asked for. The send
+         * buffer is grown to hold a full window of the agreed packets if it can't already.
+         * @param proposed Largest packet payload to ask for
+         * @return packet payload size agreed on
+         * @throws ConnectException if the Receiver never answers
+         */
+        int connect(int proposed, boolean probe) throws IOException {
+            transport = transports.open(0);
+            // the simulated drop rate, or a link model if one is set, goes in front of the socket
+            LinkModel model = link != null ? link : dropCorruptRate > 0 ? LinkModel.dropCorrupt(dropCorruptRate) : null;
+            if (model != null) transport = new ImpairedTransport(transport, model, seed + connId, metrics);
+            ByteBuffer packet = ByteBuffer.allocateDirect(PacketView.HEADER_LENGTH + Math.max(proposed, PacketView.CONTROL_LENGTH) + checksum.trailerLength());
+            PacketView reply = new PacketView().wrap(ByteBuffer.allocateDirect(2048));
+            if (probe) proposed = probe(packet, reply, proposed);
+
+            for (int attempt = 0; attempt < SYN_RETRIES; attempt++){
+                view.wrap(packet).writeControl(connId, PacketView.SYN, firstSeqno, proposed, 0);
+                view.setFlags((selectiveRepeat ? PacketView.FLAG_SACK : 0) | (fecGroup > 0 ? PacketView.FLAG_FEC : 0) | (compression ? PacketView.FLAG_COMPRESS : 0) | (resume ? PacketView.FLAG_RESUME : 0));
+                view.setWindow(windowSize);
+                view.setOffset(offset);
+                view.setFecGroup(fecGroup);
+                checksum.seal(packet);
+                long sent = System.nanoTime();
+                transmit(transport, receiver, packet, SYN);
+                if (await(reply, PacketView.SYN_ACK, System.currentTimeMillis() + rto.getTimeout())){
+                    // only an answer to the first SYN is sure to be timing that SYN (Karn's rule)
+                    if (attempt == 0) rto.sample((System.nanoTime() - sent) / 1e6);
+                    int agreed = Math.min(proposed, reply.getMss());
+                    window = Math.max(1, Math.min(windowSize, reply.getWindow()));
+                    selective = selectiveRepeat && (reply.getFlags() & PacketView.FLAG_SACK) != 0;
+                    segmentSize = PacketView.HEADER_LENGTH + agreed + checksum.trailerLength();
+                    int group = (reply.getFlags() & PacketView.FLAG_FEC) != 0 ? Math.min(fecGroup, reply.getFecGroup()) : 0;
+                    if (group > 1){
+                        parity = new ParityEncoder(group, Math.min(group, fecParity), agreed);
+                        parityPacket = ByteBuffer.allocateDirect(segmentSize);
+                        if (adaptiveFec) parity.setParity(1);
+                    }
+                    // parity marks a compressed payload in the top bit of its length, so payloads can't reach it
+                    boolean compress = compression && (reply.getFlags() & PacketView.FLAG_COMPRESS) != 0 && agreed < PacketView.PARITY_COMPRESSED;
+                    if (compress) compressor = new PayloadCompressor(agreed);
+                    if ((reply.getFlags() & PacketView.FLAG_RESUME) != 0) savedRuns = reply.getOffset();
+                    int sendBuffer = transport.growSendBuffer(window * segmentSize);
+
+                    int initialWindow = Math.min(4, window);
+                    if (controllerFactory != null) controller = controllerFactory.get();
+                    else if (congestionControl.equalsIgnoreCase("cubic")) controller = new CubicController(initialWindow, window);
+                    else controller = new RenoController(initialWindow, window);
+
+                    log.event("Connect", connId, firstSeqno, "mss=" + agreed + " window=" + window + " sack=" + selective + " fec=" + group + " compress=" + compress + " sndbuf=" + sendBuffer);
+                    if (window < windowSize || selective != selectiveRepeat){
+                        log.message(String.format("Receiver only agreed to a window of %d%s", window, selective == selectiveRepeat ? "" : " without selective repeat"));
                     }
+                    return agreed;
+                }
+                rto.backoff();
+            }
+            throw new ConnectException("No answer from the Receiver");
+        }
 
+        /**
+         * Finds the largest packet that gets through to the Receiver. A probe bigger than the
+         * Receiver's buffers arrives cut short and is thrown away like a lost one, so an unpadded
+         * probe first asks how big a packet it takes at all. Then padded probes of that size and
+         * of every smaller link MTU go out together, and the largest one answered wins.
+         * @return largest packet payload size that got through
+         * @throws ConnectException if the Receiver never answers
+         */
+        private int probe(ByteBuffer packet, PacketView reply, int proposed) throws IOException {
+            int id = 0;
+            int limit = 0;
+            for (int attempt = 0; attempt < SYN_RETRIES && limit == 0; attempt++){
+                limit = Math.min(proposed, probeRound(packet, reply, ++id, Collections.singletonList(proposed), false));
+            }
+            if (limit == 0) throw new ConnectException("No answer from the Receiver");
+
+            // IP and UDP headers come off the MTU along with our own
+            int overhead = (receiverIp instanceof Inet6Address ? 48 : 28) + PacketView.HEADER_LENGTH + checksum.trailerLength();
+            List<Integer> sizes = new ArrayList<>();
+            sizes.add(limit);
+            for (int mtu: PROBE_MTUS){
+                if (mtu - overhead < sizes.get(sizes.size() - 1) && mtu - overhead >= PacketView.CONTROL_LENGTH) sizes.add(mtu - overhead);
+            }
 
-                    if (rng.nextDouble() < dropCorruptRate){
-                        if (rng.nextInt() % 2 == 1) {
-                            cksum = (short)1;
-                            sendCondition = "ERRR";
-                        }
-                        else {
-                            sendPacket = false;
-                            sendCondition = "DROP";
-                        }
-                    }
+            int best = 0;
+            for (int attempt = 0; attempt < SYN_RETRIES && best == 0; attempt++){
+                best = probeRound(packet, reply, ++id, sizes, true);
+            }
+            if (best == 0) best = sizes.get(sizes.size() - 1);
+            log.event("Probe", connId, firstSeqno, "mss=" + best + " limit=" + limit);
+            return best;
+        }
 
-                    window[i] = new CustomPacket(payload, seqno, cksum);
-                    if (sendPacket) socket.send(window[i].getPacket(receiverIp, PORT));
+        /**
+         * Sends one probe of each size and collects the answers. Probes carry the round's id in
+         * place of a first seqno, which the Receiver hands back, so a late answer to an earlier
+         * round can't be taken for one to this round and every answer times this round's probes.
+         * @param padded false to send the probes bare, only asking the Receiver what it would take
+         * @return largest size answered, 0 if nothing was
+         */
+        private int probeRound(ByteBuffer packet, PacketView reply, int id, List<Integer> sizes, boolean padded) throws IOException {
+            long sent = System.nanoTime();
+            for (int size: sizes){
+                view.wrap(packet).writeControl(connId, PacketView.PROBE, id, size, padded ? size : 0);
+                checksum.seal(packet);
+                transmit(transport, receiver, packet, PROBE);
+            }
 
-                    printMessage("SENDing", seqno, sendCondition, start);
+            // answers come back in the order the probes went out, the ones to larger probes
+            // first, so once one is in the rest get another RTT to catch up
+            int best = 0;
+            long deadline = System.currentTimeMillis() + rto.getTimeout();
+            while (await(reply, PacketView.PROBE_ACK, deadline)){
+                if (reply.getFirstSeqno() != id) continue;
+                if (best == 0){
+                    long rtt = System.nanoTime() - sent;
+                    rto.sample(rtt / 1e6);
+                    deadline = System.currentTimeMillis() + Math.max(1, rtt / 1_000_000);
+                }
+                best = Math.max(best, reply.getMss());
+            }
+            if (best == 0) rto.backoff();
+            return best;
+        }
 
-                    seqno++;
-                    if (lastPacket) break;
+        /**
+         * Lists the runs of packets the Receiver already has, a RESUME at a time, each asking
+         * for the runs that end past the last one listed so far
+         * @throws ConnectException if the Receiver stops answering
+         */
+        ReceivedRanges listReceived() throws IOException {
+            ByteBuffer packet = ByteBuffer.allocateDirect(PacketView.CONTROL_LENGTH + checksum.trailerLength());
+            PacketView reply = new PacketView().wrap(ByteBuffer.allocateDirect(2048));
+            int max = PacketView.maxRanges(segmentSize - PacketView.HEADER_LENGTH - checksum.trailerLength());
+            List<int[]> runs = new ArrayList<>();
+            for (int from = 0, count = max; count == max; ){
+                boolean answered = false;
+                for (int attempt = 0; attempt < SYN_RETRIES && !answered; attempt++){
+                    view.wrap(packet).writeControl(connId, PacketView.RESUME, firstSeqno, 0, 0);
+                    view.setOffset(from);
+                    checksum.seal(packet);
+                    transmit(transport, receiver, packet, RESUME);
+                    // a late answer to an earlier RESUME lists from somewhere else
+                    long deadline = System.currentTimeMillis() + rto.getTimeout();
+                    while (!answered && await(reply, PacketView.RESUME_ACK, deadline)) answered = reply.getOffset() == from;
+                    if (!answered) rto.backoff();
+                }
+                if (!answered) throw new ConnectException("No answer from the Receiver");
+                count = reply.getRangeCount();
+                for (int i = 0; i < count; i++){
+                    runs.add(new int[]{ reply.getRangeStart(i), reply.getRangeEnd(i) });
+                    from = reply.getRangeEnd(i);
                 }
+            }
+            log.event("Resume", connId, firstSeqno, "runs=" + runs.size());
+            return new ReceivedRanges(runs);
+        }
 
-                // Wait for ack and process
-                while (responsePacket == null || seqno != responsePacket.getAckno()){
-                    try {
-                        ackCond = "";
-                        socket.receive(response);
-                        responsePacket = new CustomPacket(response.getData());
-                        if (responsePacket.getCksum() == 1) ackCond = "[ErrAck.]";
-                        else if (lastAck == responsePacket.getAckno()) ackCond = "[DuplAck]";
-                        else if (seqno == responsePacket.getAckno()) {
-                            ackCond = "[MoveWnd]";
-                            lastAck = responsePacket.getAckno();
-                        }
-                        System.out.println(String.format("[AckRcvd]: %3d %s", responsePacket.getAckno(), ackCond));
-                    } catch (SocketTimeoutException e){
-                        System.out.println(String.format("[TimeOut]: %3d", seqno));
+        /**
+         * Waits for a control packet of the given type for this stream, ignoring anything else
+         * @param deadline Time in ms to give up at
+         * @return true if one arrived in time, and is in reply
+         */
+        private boolean await(PacketView reply, int type, long deadline) throws IOException {
+            for (long wait = deadline - System.currentTimeMillis(); wait > 0; wait = deadline - System.currentTimeMillis()){
+                if (transport.receive(reply.buffer(), wait) == null) return false;
+                if (!PacketChecksum.verify(reply.buffer())) metrics.badChecksums.increment();
+                else if (reply.getConnId() == connId && reply.isControl() && reply.getType() == type) return true;
+            }
+            return false;
+        }
+
+        private void send(Transport transport, PayloadSource payloads) throws IOException {
+            int mss = segmentSize - PacketView.HEADER_LENGTH - checksum.trailerLength();
+
+            // every packet lives in a pooled direct buffer from the moment it is built until it is acked
+            BufferPool pool = new BufferPool(segmentSize, this.window + 1);
+            SlidingWindow window = new SlidingWindow(this.window, firstSeqno, pool);
+            PacketView ack = new PacketView().wrap(ByteBuffer.allocateDirect(2048));
+            boolean drained = false;
+            boolean starved = false;
+            int lastAck = firstSeqno - 1;
+            long lastBackoff = 0;
+            // retransmissions back off up to the maximum RTO but never stop, so a Receiver that
+            // has gone for good is only noticed by how long it has been quiet with packets in flight
+            long lastHeard = System.currentTimeMillis();
+            // packets past the base the Receiver last said it has room for, a file always has room for the window
+            int advertised = Integer.MAX_VALUE;
+            long persist = 0;
+
+            while (!drained || !window.isEmpty()){
+                if (failure != null) throw new IOException("Another stream failed", failure);
+
+                // resend anything given up as lost first, then keep the pipe full with new packets,
+                // never letting more than the congestion window into the network, nor more past the base
+                // than the Receiver has room for, bar the one packet that probes it once it has none
+                // with pacing on, a packet only goes out once the pacer has room for it
+                int limit = Math.min(this.window, controller.getWindow());
+                long timer = advertised == 0 ? Math.max(persist, rto.getTimeout()) : rto.getTimeout();
+                long paceDelay = 0;
+                if (pacer != null && rto.getSrtt() > 0){
+                    long rate = (long)(PACING_GAIN * controller.getWindow() * segmentSize * 1000 / rto.getSrtt());
+                    pacer.setRate(rate, burst(rate, segmentSize));
+                }
+                for (int seqno = window.getBase(); seqno < window.getNext() && window.pipe() < limit; seqno++){
+                    if (!window.isLost(seqno)) continue;
+                    if ((paceDelay = pace(window.get(seqno).remaining())) > 0) break;
+                    transmit(transport, receiver, window.get(seqno), RESEND);
+                    window.markRetransmitted(seqno);
+                    resent++;
+                    window.setDeadline(seqno, System.currentTimeMillis() + timer);
+                }
+                // an input that has nothing yet leaves the loop free to handle acks and timers meanwhile
+                starved = false;
+                while (paceDelay == 0 && !drained && !window.isFull() && window.pipe() < limit && window.getNext() - window.getBase() < Math.max(1, advertised)){
+                    if (starved = !payloads.ready(mss)) break;
+                    if ((paceDelay = pace(segmentSize)) > 0) break;
+                    ByteBuffer source = payloads.next(mss);
+                    int length = Math.min(mss, source.remaining());
+                    if (length == 0){
+                        // whatever made it into the last group still gets its parity
+                        drained = true;
+                        if (parity != null && parity.size() > 0) sendParity(transport);
+                        break;
+                    }
+
+                    int seqno = window.getNext();
+                    int index = received.index(offset, seqno - firstSeqno);
+                    ByteBuffer compressed = compressor != null ? compressor.compress(source, length) : null;
+                    ByteBuffer packet;
+                    if (compressed == null) packet = view.wrap(pool.acquire()).writeData(connId, index, seqno, source, length).buffer();
+                    else {
+                        source.position(source.position() + length);
+                        packet = view.wrap(pool.acquire()).writeData(connId, index, seqno, compressed, compressed.remaining()).buffer();
+                        view.setCompressed();
+                        metrics.bytesSaved.add(length - view.getPayloadLength());
+                        length = view.getPayloadLength();
                     }
+                    checksum.seal(packet);
+                    window.add(packet, System.currentTimeMillis() + timer);
+                    transmit(transport, receiver, packet, SEND);
+                    if (parity != null && parity.add(seqno, packet, length)) sendParity(transport);
+                }
 
-                    if (responsePacket == null || seqno != responsePacket.getAckno()){
-                        for (CustomPacket packet: window) {
-                            if (packet == null) break;
-
-                            sendCondition = "SENT";
-                            sendPacket = true;
-                            packet.setCksum((short)0);
-
-                            int tempSeqno = packet.getSeqno();
-                            if (rng.nextDouble() < dropCorruptRate){
-                                if (rng.nextInt() %2 == 1){
-                                    packet.setCksum((short)1);
-                                    sendCondition = "ERRR";
-                                }
-                                else {
-                                    sendPacket = false;
-                                    sendCondition = "DROP";
-                                }
-                            }
-
-                            if (sendPacket)socket.send(packet.getPacket(receiverIp, PORT));
-                            printMessage("ReSend.", tempSeqno, sendCondition, start);
+                if (drained && window.isEmpty()) break;
+                if (starved && window.isEmpty() && System.currentTimeMillis() - lastSent >= KEEPALIVE_INTERVAL) keepAlive(transport);
+
+                // block until an ack shows up, the earliest timer runs out or the pacer lets the next packet go,
+                // waits shorter than the selector can time are spent parked, unless an ack is already waiting
+                long wait = Math.max(1, Math.min(lastHeard + idleTimeout, window.earliestDeadline()) - System.currentTimeMillis());
+                SocketAddress from;
+                if (paceDelay > 0 && paceDelay < 1_000_000){
+                    from = transport.poll(ack.buffer());
+                    if (from == null){
+                        LockSupport.parkNanos(paceDelay);
+                        from = transport.poll(ack.buffer());
+                    }
+                }
+                else {
+                    if (paceDelay > 0) wait = Math.min(wait, paceDelay / 1_000_000);
+                    if (starved) wait = Math.min(wait, STARVED_WAIT);
+                    from = transport.receive(ack.buffer(), wait);
+                }
+                if (from != null && !PacketChecksum.verify(ack.buffer())){
+                    metrics.badChecksums.increment();
+                    log.sample("AckRcvd", connId, 0, "ErrAck");
+                }
+                else if (from != null && ack.getConnId() == connId && ack.isControl()){
+                    lastHeard = System.currentTimeMillis();
+                    if (ack.getType() == PacketView.RESET){
+                        log.event("Reset", connId, window.getBase(), "NoSession");
+                        throw new ConnectException("Receiver has no session for the stream, it finished or gave up on it");
+                    }
+                }
+                else if (from != null && ack.getConnId() == connId){
+                    lastHeard = System.currentTimeMillis();
+                    String ackCond = "OldAck";
+
+                    // newest segment this ack covers gives the RTT sample, unless the ack fills a gap with a
+                    // resent segment (Karn's rule) or only catches up with segments SACKed earlier
+                    if (window.isSampleable(ack.getAckno())){
+                        long rtt = window.timeSinceSent(ack.getAckno() - 1);
+                        rto.sample(rtt / 1e6);
+                        metrics.rtt.record(rtt / 1000);
+                    }
+
+                    int previous = advertised;
+                    advertised = ack.getAdvertised();
+                    // a packet the Receiver had no room for comes back as the same ackno, which says nothing of loss
+                    if (lastAck == ack.getAckno() && !window.isEmpty() && advertised == 0) ackCond = "ZeroWnd";
+                    else if (lastAck == ack.getAckno() && !window.isEmpty()) {
+                        ackCond = "DuplAck";
+                        metrics.duplicateAcks.increment();
+                        if (controller.onDuplicateAck(window.getNext())) markLost(window, false);
+                    }
+                    else {
+                        for (int seqno = window.getBase(); seqno < Math.min(ack.getAckno(), window.getNext()); seqno++){
+                            metrics.ackLatency.record(window.timeSinceSent(seqno) / 1000);
+                            metrics.bytesAcked.add(view.wrap(window.get(seqno)).getPayloadLength());
+                        }
+                        int acked = window.ackThrough(ack.getAckno());
+                        if (acked > 0) {
+                            ackCond = "MoveWnd";
+                            // a partial ack in recovery points at the next hole, go-back-N already resent it
+                            if (controller.onAck(ack.getAckno(), acked, rto.getSrtt()) && selective) window.markLost(window.getBase());
                         }
+                    }
+
+                    // bits in the SACK cover what arrived after ackno
+                    for (int i = 0; i < 32; i++){
+                        if ((ack.getSack() & (1 << i)) != 0) window.markAcked(ack.getAckno() + 1 + i);
+                    }
+                    // whatever went out while there was no room was dropped rather than lost, and goes
+                    // again now without waiting out its timer
+                    if (previous == 0 && advertised > 0){
+                        for (int seqno = window.getBase(); seqno < window.getNext(); seqno++) window.markLost(seqno);
+                        persist = 0;
+                    }
+                    lastAck = ack.getAckno();
+                    recovered = Math.max(recovered, ack.getRecovered());
+                    log.sample("AckRcvd", connId, ack.getAckno(), ackCond);
+                }
+
+                long now = System.currentTimeMillis();
+                if (window.isEmpty()) lastHeard = now;
+                else if (now - lastHeard >= idleTimeout){
+                    log.event("Idle", connId, window.getBase(), "quiet=" + (now - lastHeard) + "ms");
+                    throw new ConnectException("Receiver stopped answering");
+                }
 
+                // per-segment timers that expire close together are one loss event, so the RTO
+                // backs off and cwnd collapses at most once per RTO
+                // with no room at the Receiver nothing is being lost, so the timers only time the next probe
+                if (window.earliestDeadline() <= now && advertised == 0){
+                    persist = Math.min(PERSIST_MAX, 2 * Math.max(persist, rto.getTimeout()));
+                    window.markLost(window.getBase());
+                    for (int seqno = window.getBase() + 1; seqno < window.getNext(); seqno++) window.setDeadline(seqno, now + persist);
+                }
+                else if (window.earliestDeadline() <= now){
+                    if (now - lastBackoff >= rto.getTimeout()){
+                        log.event("TimeOut", connId, window.getBase(), "rto=" + rto.getTimeout() + "ms");
+                        metrics.timeouts.increment();
+                        rto.backoff();
+                        controller.onTimeout();
+                        lastBackoff = now;
                     }
+                    markLost(window, true);
                 }
+            }
+            if (compressor != null) compressor.close();
+            close(ack);
+        }
 
-                if (lastPacket) break;
+        /**
+         * Sends a FIN once everything has been acked, so the Receiver can finish the stream
+         * and free it straight away. The data is all in by then, so a FIN that is never
+         * answered is only logged.
+         */
+        private void close(PacketView reply) throws IOException {
+            ByteBuffer packet = ByteBuffer.allocateDirect(PacketView.CONTROL_LENGTH + checksum.trailerLength());
+            for (int attempt = 0; attempt < SYN_RETRIES; attempt++){
+                view.wrap(packet).writeControl(connId, PacketView.FIN, firstSeqno, 0, 0);
+                checksum.seal(packet);
+                transmit(transport, receiver, packet, FIN);
+                if (await(reply, PacketView.FIN_ACK, System.currentTimeMillis() + rto.getTimeout())){
+                    log.event("Close", connId, firstSeqno, "FinAckd");
+                    return;
+                }
+                rto.backoff();
             }
+            log.event("Close", connId, firstSeqno, "NoFinAck");
+        }
 
-        } catch (SocketException e) {
-            System.out.println("Unable to bind socket");
-            System.exit(0);
-        } catch (IOException e) {
-            System.out.println("Problem reading file");
-            System.exit(0);
+        /**
+         * Lets the Receiver know the stream is still there while the input has nothing for it,
+         * so the session isn't dropped as idle however long the input takes
+         */
+        private void keepAlive(Transport transport) throws IOException {
+            ByteBuffer packet = ByteBuffer.allocateDirect(PacketView.CONTROL_LENGTH + checksum.trailerLength());
+            view.wrap(packet).writeControl(connId, PacketView.KEEPALIVE, firstSeqno, 0, 0);
+            checksum.seal(packet);
+            transmit(transport, receiver, packet, KEEPALIVE);
+        }
+
+        /**
+         * Sends the parity of the group just finished and starts the next one. With adaptive FEC
+         * the group's losses, counted as what had to be resent plus what the Receiver rebuilt
+         * since the last group, feed the loss rate that sets the next group's parity.
+         */
+        private void sendParity(Transport transport) throws IOException {
+            for (int stripe = 0; stripe < parity.parityCount(); stripe++){
+                parity.writeParity(view.wrap(parityPacket), connId, stripe);
+                checksum.seal(parityPacket);
+                transmit(transport, receiver, parityPacket, PARITY);
+            }
+
+            if (adaptiveFec){
+                double losses = resent + recovered - lastRecovered;
+                lossRate += FEC_GAIN * (Math.min(1, losses / parity.size()) - lossRate);
+                parity.setParity((int)Math.ceil(FEC_MARGIN * lossRate * parity.getGroupSize()));
+                resent = 0;
+                lastRecovered = recovered;
+            }
+            parity.reset();
+        }
+
+        /**
+         * Takes room for a packet from the pacer and the rate limit, if either is on
+         * @return 0 if the packet can go now, otherwise time in ns until it can
+         */
+        private long pace(int bytes){
+            long delay = pacer == null ? 0 : pacer.delay(bytes);
+            if (delay == 0 && limiter != null) delay = limiter.tryConsume(bytes);
+            if (delay == 0 && pacer != null) pacer.consume(bytes);
+            return delay;
+        }
+
+        /**
+         * Marks packets for retransmission. Selective repeat only gives up on what the
+         * Receiver is known to be missing, go-back-N gives up on everything in flight
+         * since the Receiver threw away whatever came after the gap.
+         * @param timeout true if a retransmission timer expired, false for a fast retransmit
+         */
+        private void markLost(SlidingWindow window, boolean timeout){
+            long now = System.currentTimeMillis();
+            for (int seqno = window.getBase(); seqno < window.getNext(); seqno++){
+                if (!selective) window.markLost(seqno);
+                else if (timeout ? window.getDeadline(seqno) <= now : seqno == window.getBase()) window.markLost(seqno);
+            }
+        }
+
+        /**
+         * Sends a single encoded packet
+         */
+        private void transmit(Transport transport, SocketAddress receiver, ByteBuffer packet, String sendType) throws IOException {
+            if (sendType == RESEND) metrics.retransmissions.increment();
+            else if (sendType == SEND) metrics.packetsSent.increment();
+            else if (sendType == PARITY) metrics.paritySent.increment();
+            transport.send(packet, receiver);
+            lastSent = System.currentTimeMillis();
+            log.sample(sendType, connId, view.wrap(packet).getSeqno(), "SENT");
         }
     }
 
-    private void printMessage(String sendType, int seqno, String sendCondition, Instant start) {
-        try { Thread.sleep(sleepTime); }
-        catch (InterruptedException e) { e.printStackTrace(); }
-        System.out.println(String.format("[%s]: %3d [%10d:%10d] %10dms [%s]",sendType, seqno, packetSize * (seqno -1), (packetSize * seqno) -1, Duration.between(start, Instant.now()).toMillis(), sendCondition));
+
+    /**
+     * @return transfer id standing for a file, the same for as long as the file isn't changed
+     */
+    private static int fileId(Path path) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update((path.getFileName() + "/" + Files.size(path) + "/" + Files.getLastModifiedTime(path).toMillis()).getBytes(StandardCharsets.UTF_8));
+        return (int)crc.getValue() >>> 8;
     }
 
+    /**
+     * @return largest burst a token bucket at rate bytes/s allows, never less than two full packets
+     */
+    private long burst(long rate, int segmentSize){
+        return Math.max(2L * segmentSize, (long)(rate * (PACING_BURST / 1e9)));
+    }
 
     public static Builder Builder(){
         return new Builder();
@@ -199,16 +862,44 @@ public class Sender {
     /**
      *
      */
-    static class Builder {
+    public static class Builder {
         private Sender sender;
 
         private Builder(){ sender = new Sender(); }
 
         public void setPacketSize(int size){ sender.packetSize = size; }
+        public void setProbeMtu(boolean probe){ sender.probeMtu = probe; }
+        public void setFileName(String fileName){ sender.fileName = fileName; }
         public void setTimeout(int timeout) { sender.timeoutLength = timeout; }
-        public void setWindowSize( int size) { sender.windowSize = size; }
+        public void setMinTimeout(int timeout) { sender.minTimeout = timeout; }
+        public void setMaxTimeout(int timeout) { sender.maxTimeout = timeout; }
+        public void setIdleTimeout(int timeout) { sender.idleTimeout = timeout; }
+        public void setWindowSize( int size) { sender.windowSize = Math.max(1, size); }
         public void setDropCorruptRate(double rate) { sender.dropCorruptRate = rate; }
+        public void setSelectiveRepeat(boolean selectiveRepeat) { sender.selectiveRepeat = selectiveRepeat; }
+        public void setCongestionControl(String algorithm) { sender.congestionControl = algorithm; }
+        public void setCongestionController(Supplier<CongestionController> factory) { sender.controllerFactory = factory; }
+        public void setChecksum(String checksum) { sender.checksum = PacketChecksum.forName(checksum); }
+        public void setLogSampling(int rate) { sender.logSampling = rate; }
+        public void setPacing(boolean pacing) { sender.pacing = pacing; }
+        public void setRateLimit(long bytesPerSecond) { sender.rateLimit = bytesPerSecond; }
+        public void setFec(int group, int parity) {
+            sender.fecGroup = Math.max(0, Math.min(255, group));
+            sender.fecParity = Math.max(1, parity);
+        }
+        public void setAdaptiveFec(boolean adaptive) { sender.adaptiveFec = adaptive; }
+        public void setCompression(boolean compression) { sender.compression = compression; }
+        public void setResume(boolean resume) { sender.resume = resume; }
+        public void setTransport(Transport.Factory factory) { sender.transports = factory; }
+        public void setInput(ReadableByteChannel input) { sender.input = input; }
+        public void setLogStream(PrintStream out) { sender.out = out; }
+        public void setLink(LinkModel link, long seed) {
+            sender.link = link;
+            sender.seed = seed;
+        }
+        public void setStreams(int streams) { sender.streams = Math.max(1, Math.min(PacketView.MAX_STREAMS, streams)); }
         public void setPort(int port) { sender.PORT = port; }
+        public void setConnectionId(int connId) { sender.connId = connId; }
         public void setReceiverIp(String addr){
             try {
                 sender.receiverIp = InetAddress.getByName(addr);
@@ -0,0 +1,221 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SlidingWindow is a ring buffer of encoded packets indexed by seqno modulo
+ * its capacity. The Sender uses it to track segments in flight along with their
+ * retransmission deadlines, the Receiver uses it to track segments that
+ * arrived ahead of the next one it is waiting for.
+ *
+ * Either way the window slides one slot at a time, so a slot is free for
+ * the next segment as soon as the one before it has been acked or arrived.
+ * On the Sender side buffers come from a BufferPool and go back to it when
+ * their packets are acked. The Receiver hands payloads off as soon as they
+ * arrive, so its window only keeps track of which seqnos are in.
+ */
+class SlidingWindow {
+
+    private final ByteBuffer[] packets;
+    private final int[] seqnos;
+    private final BufferPool pool;
+    private final long[] deadlines;
+    private final long[] sentAt;
+    private final boolean[] acked;
+    private final boolean[] retransmitted;
+    private final boolean[] lost;
+
+    // lowest seqno still held and the next seqno that will be added
+    private int base = 1;
+    private int next = 1;
+
+    /**
+     * @param capacity Number of packets the window spans
+     * @param pool Pool acked buffers go back to, only used on the Sender side
+     */
+    SlidingWindow(int capacity, BufferPool pool){
+        this(capacity, 1, pool);
+    }
+
+    /**
+     * @param capacity Number of packets the window spans
+     * @param firstSeqno Seqno the window starts at
+     * @param pool Pool acked buffers go back to, only used on the Sender side
+     */
+    SlidingWindow(int capacity, int firstSeqno, BufferPool pool){
+        this.pool = pool;
+        base = firstSeqno;
+        next = firstSeqno;
+        packets = new ByteBuffer[capacity];
+        seqnos = new int[capacity];
+        deadlines = new long[capacity];
+        sentAt = new long[capacity];
+        acked = new boolean[capacity];
+        retransmitted = new boolean[capacity];
+        lost = new boolean[capacity];
+    }
+
+    public int getBase() { return base; }
+    public int getNext() { return next; }
+    public int capacity() { return packets.length; }
+    public boolean isFull() { return next - base >= packets.length; }
+    public boolean isEmpty() { return next == base; }
+
+    private int slot(int seqno) { return Math.floorMod(seqno, packets.length); }
+
+    /**
+     * @return packet held for seqno, or null if seqno is outside the window or not here yet
+     */
+    public ByteBuffer get(int seqno){
+        int slot = slot(seqno);
+        return packets[slot] != null && seqnos[slot] == seqno ? packets[slot] : null;
+    }
+
+    public boolean contains(int seqno) { return seqno >= base && seqno < base + packets.length; }
+
+    // ---- Sender side ----
+
+    /**
+     * Adds a freshly built packet at the leading edge of the window
+     * @param packet Encoded packet carrying seqno getNext()
+     * @param deadline Time in ms its retransmission timer runs out
+     */
+    public void add(ByteBuffer packet, long deadline){
+        if (isFull()) throw new IllegalStateException("Window is full");
+        int slot = slot(next);
+        packets[slot] = packet;
+        seqnos[slot] = next;
+        deadlines[slot] = deadline;
+        sentAt[slot] = System.nanoTime();
+        acked[slot] = false;
+        retransmitted[slot] = false;
+        lost[slot] = false;
+        next++;
+    }
+
+    public long getDeadline(int seqno) { return deadlines[slot(seqno)]; }
+    public void setDeadline(int seqno, long deadline) { deadlines[slot(seqno)] = deadline; }
+    public boolean isAcked(int seqno) { return acked[slot(seqno)]; }
+    public boolean isRetransmitted(int seqno) { return retransmitted[slot(seqno)]; }
+    public boolean isLost(int seqno) { return lost[slot(seqno)]; }
+
+    /**
+     * Gives up on a packet in flight, it no longer counts towards pipe() until it is resent
+     */
+    public void markLost(int seqno){
+        if (seqno >= base && seqno < next && !acked[slot(seqno)]) lost[slot(seqno)] = true;
+    }
+
+    /**
+     * Records that seqno went out again, which also means it is back in flight
+     */
+    public void markRetransmitted(int seqno){
+        retransmitted[slot(seqno)] = true;
+        lost[slot(seqno)] = false;
+    }
+
+    /**
+     * @return number of packets actually believed to be in the network, i.e. neither acked nor lost
+     */
+    public int pipe(){
+        int pipe = 0;
+        for (int seqno = base; seqno < next; seqno++){
+            if (!acked[slot(seqno)] && !lost[slot(seqno)]) pipe++;
+        }
+        return pipe;
+    }
+
+    /**
+     * @return time in ns since seqno was first sent
+     */
+    public long timeSinceSent(int seqno) { return System.nanoTime() - sentAt[slot(seqno)]; }
+
+    /**
+     * An ack that fills a gap with a resent packet, or only catches up with packets SACKed
+     * earlier, wasn't sent in answer to the newest packet it covers, so timing that packet
+     * would take in however long the gap stayed open.
+     * @return true if the ack times the newest packet below ackno, i.e. it covers new packets
+     * and none of them was resent or SACKed before
+     */
+    public boolean isSampleable(int ackno){
+        if (ackno <= base || ackno > next) return false;
+        for (int seqno = base; seqno < ackno; seqno++){
+            if (retransmitted[slot(seqno)] || acked[slot(seqno)]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Slides the window up to a cumulative ack, freeing every slot below it
+     * and returning its buffer to the pool
+     * @param ackno Next seqno the other side expects
+     * @return number of slots freed
+     */
+    public int ackThrough(int ackno){
+        int freed = 0;
+        while (base < ackno && base < next){
+            pool.release(packets[slot(base)]);
+            packets[slot(base)] = null;
+            acked[slot(base)] = false;
+            lost[slot(base)] = false;
+            base++;
+            freed++;
+        }
+        return freed;
+    }
+
+    /**
+     * Marks a single packet past the base as received, as reported by a SACK
+     */
+    public void markAcked(int seqno){
+        if (seqno >= base && seqno < next) acked[slot(seqno)] = true;
+    }
+
+    /**
+     * @return earliest retransmission deadline of any packet still in flight, or Long.MAX_VALUE if there is none
+     */
+    public long earliestDeadline(){
+        long earliest = Long.MAX_VALUE;
+        for (int seqno = base; seqno < next; seqno++){
+            if (!acked[slot(seqno)] && !lost[slot(seqno)]) earliest = Math.min(earliest, deadlines[slot(seqno)]);
+        }
+        return earliest;
+    }
+
+    // ---- Receiver side ----
+
+    /**
+     * @return true if seqno has arrived, everything below the base has
+     */
+    public boolean isReceived(int seqno){
+        if (seqno < base) return true;
+        return contains(seqno) && acked[slot(seqno)] && seqnos[slot(seqno)] == seqno;
+    }
+
+    /**
+     * Records the arrival of a packet inside the window
+     * @return false if seqno falls outside the window or has already arrived
+     */
+    public boolean markReceived(int seqno){
+        if (!contains(seqno) || isReceived(seqno)) return false;
+        acked[slot(seqno)] = true;
+        seqnos[slot(seqno)] = seqno;
+        next = Math.max(next, seqno + 1);
+        return true;
+    }
+
+    /**
+     * Slides the base past every packet that has now arrived in order
+     * @return number of packets the window moved by
+     */
+    public int slide(){
+        int moved = 0;
+        while (isReceived(base)){
+            acked[slot(base)] = false;
+            base++;
+            moved++;
+        }
+        next = Math.max(next, base);
+        return moved;
+    }
+}
@@ -0,0 +1,136 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Inflater;
+
+/**
+ * StreamSink writes a transfer's payloads to a channel in order, for a
+ * caller reading it as a stream rather than a file. Packets that arrive
+ * ahead of a gap are held until it is filled, which never takes more than a
+ * window of them for a transfer sent as one stream.
+ *
+ * Writing happens on a thread of its own as in FileSink. When the reader
+ * falls behind, the channel blocks that thread and the queue in front of it
+ * fills. write() never waits for room, the Receiver checks room() first and
+ * drops what doesn't fit, advertising the room that is left to the Sender,
+ * so a slow reader holds back its own transfer and nobody else's.
+ */
+class StreamSink implements PacketSink {
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final WritableByteChannel channel;
+    private final Runnable onAbort;
+    private final BlockingQueue<ByteBuffer> queue;
+    private final BufferPool pool;
+    private final int packetSize;
+    private final Thread writer;
+    private volatile IOException failure;
+    private volatile boolean closed = false;
+
+    /**
+     * @param channel Channel to write the transfer's bytes to, closed once they are all written
+     * @param onAbort Called if the transfer is given up on, before the channel is closed
+     * @param packetSize Payload size of every packet but the last
+     * @param queueLength Number of packets that can be waiting on the channel before the sink is full
+     * @param pool Pool written buffers are returned to
+     */
+    StreamSink(WritableByteChannel channel, Runnable onAbort, int packetSize, int queueLength, BufferPool pool){
+        this.channel = channel;
+        this.onAbort = onAbort;
+        this.packetSize = packetSize;
+        this.pool = pool;
+        queue = new ArrayBlockingQueue<>(queueLength);
+        writer = new Thread(this::drain, "StreamSink");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @throws IOException if the sink is full, which room() would have said, or the channel failed
+     */
+    @Override
+    public void write(ByteBuffer packet) throws IOException {
+        if (closed) throw new IOException("Sink already closed");
+        if (failure != null) throw failure;
+        if (!queue.offer(packet)) throw new IOException("Sink is full");
+    }
+
+    @Override
+    public int room() { return queue.remainingCapacity(); }
+
+    private void drain(){
+        PacketView view = new PacketView();
+        Map<Integer, ByteBuffer> early = new HashMap<>();
+        Inflater inflater = new Inflater(true);
+        ByteBuffer inflated = ByteBuffer.allocateDirect(packetSize);
+        int next = 0;
+        try {
+            for (ByteBuffer packet = queue.take(); packet != END; packet = queue.take()){
+                int index = view.wrap(packet).getIndex();
+                if (index != next){
+                    if (index > next) early.put(index, packet);
+                    else pool.release(packet);
+                    continue;
+                }
+                for (; packet != null; packet = early.remove(++next)){
+                    view.wrap(packet);
+                    ByteBuffer payload = view.isCompressed() ? PayloadCompressor.inflate(inflater, view.payload(), inflated) : view.payload();
+                    while (payload.hasRemaining()) channel.write(payload);
+                    pool.release(packet);
+                }
+            }
+            if (!early.isEmpty()) throw new IOException("Stream ended with a gap before packet " + next);
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new IOException("Writer thread interrupted", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Waits for every queued payload to be written, then closes the channel
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            if (writer.isAlive()) queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (failure != null) onAbort.run();
+            channel.close();
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Stops writing where it is and closes the channel, telling the reader it was cut short
+     */
+    @Override
+    public void abort(){
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        onAbort.run();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
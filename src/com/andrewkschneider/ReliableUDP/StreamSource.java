@@ -0,0 +1,118 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * StreamSource reads inputs that can't be mapped, like stdin or a pipe, in
+ * chunks through a fixed size staging buffer. Payloads are only cut short at
+ * the very end of the stream.
+ *
+ * The input is read on a thread of its own, which can get a few chunks
+ * ahead, so an input that stalls never blocks the Sender in the middle of
+ * its loop. ready() says whether a payload can be had without waiting, and
+ * until it can the Sender goes on handling acks and timers.
+ */
+class StreamSource implements PayloadSource {
+
+    private static final int MIN_STAGING_SIZE = 64 * 1024;
+    // chunks the reader thread can have read ahead of the Sender
+    private static final int CHUNKS = 4;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final ReadableByteChannel in;
+    private final ByteBuffer staging;
+    private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(CHUNKS + 1);
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(CHUNKS);
+    private final Thread reader;
+    private volatile IOException failure;
+    // chunk only partly copied into staging so far
+    private ByteBuffer chunk;
+    private boolean eof = false;
+
+    /**
+     * @param packetSize Largest payload that will be asked for
+     */
+    StreamSource(ReadableByteChannel in, int packetSize){
+        this.in = in;
+        int size = Math.max(MIN_STAGING_SIZE, packetSize);
+        staging = ByteBuffer.allocateDirect(size);
+        staging.flip();
+        for (int i = 0; i < CHUNKS; i++) free.add(ByteBuffer.allocateDirect(size));
+        reader = new Thread(this::read, "StreamSource");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Hands every read over as soon as it is done, however little it got, and ends with END
+     */
+    private void read(){
+        try {
+            for (ByteBuffer chunk = free.take(); in.read(chunk.clear()) >= 0; chunk = free.take()){
+                filled.put(chunk.flip());
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Reader thread interrupted");
+        }
+        // there is always room for END, the chunks can't fill more than CHUNKS slots
+        filled.offer(END);
+    }
+
+    @Override
+    public boolean ready(int length) throws IOException {
+        return fill(length, false);
+    }
+
+    @Override
+    public ByteBuffer next(int length) throws IOException {
+        fill(length, true);
+        return staging;
+    }
+
+    /**
+     * Copies what the reader thread has read into staging until it holds length bytes or the input ends
+     * @param block true to wait on the reader thread, false to only take the chunks it already has
+     * @return true if staging holds length bytes or everything that is left
+     */
+    private boolean fill(int length, boolean block) throws IOException {
+        if (staging.remaining() >= length || eof) return true;
+        staging.compact();
+        try {
+            while (staging.position() < length && !eof){
+                if (chunk == null && (chunk = block ? filled.take() : filled.poll()) == null) break;
+                if (chunk == END){
+                    chunk = null;
+                    eof = true;
+                    if (failure != null) throw failure;
+                    break;
+                }
+                int n = Math.min(chunk.remaining(), staging.remaining());
+                staging.put(chunk.duplicate().limit(chunk.position() + n));
+                chunk.position(chunk.position() + n);
+                if (!chunk.hasRemaining()){
+                    free.add(chunk);
+                    chunk = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for input");
+        } finally {
+            staging.flip();
+        }
+        return staging.remaining() >= length || eof;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.interrupt();
+        in.close();
+    }
+}
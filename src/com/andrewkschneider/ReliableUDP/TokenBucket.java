@@ -0,0 +1,64 @@
+package com.andrewkschneider.ReliableUDP;
+
+/**
+ * TokenBucket limits how fast bytes go out. Tokens accrue at a fixed rate up
+ * to the size of the bucket, and sending a packet takes as many tokens as it
+ * has bytes, so traffic can burst by at most the bucket size and averages
+ * out at the rate. The rate can be changed on the fly, and one bucket can be
+ * shared between threads to cap what they send together.
+ */
+class TokenBucket {
+
+    private double rate;
+    private double capacity;
+    private double tokens;
+    private long last = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond Rate tokens accrue at
+     * @param capacity Most tokens the bucket holds, i.e. the largest burst in bytes
+     */
+    TokenBucket(long bytesPerSecond, long capacity){
+        setRate(bytesPerSecond, capacity);
+        tokens = capacity;
+    }
+
+    public synchronized void setRate(long bytesPerSecond, long capacity){
+        refill(System.nanoTime());
+        rate = bytesPerSecond / 1e9;
+        this.capacity = capacity;
+        tokens = Math.min(tokens, capacity);
+    }
+
+    /**
+     * @return time in ns until bytes could go out, 0 if they can now
+     */
+    public synchronized long delay(int bytes){
+        refill(System.nanoTime());
+        if (tokens >= bytes) return 0;
+        return Math.max(1, (long)Math.ceil((bytes - tokens) / rate));
+    }
+
+    /**
+     * Takes tokens for bytes if there are enough
+     * @return 0 if they were taken, otherwise time in ns until there will be enough
+     */
+    public synchronized long tryConsume(int bytes){
+        long delay = delay(bytes);
+        if (delay == 0) tokens -= bytes;
+        return delay;
+    }
+
+    /**
+     * Takes tokens for bytes whether or not there are enough, running into debt if need be
+     */
+    public synchronized void consume(int bytes){
+        refill(System.nanoTime());
+        tokens -= bytes;
+    }
+
+    private void refill(long now){
+        tokens = Math.min(capacity, tokens + (now - last) * rate);
+        last = now;
+    }
+}
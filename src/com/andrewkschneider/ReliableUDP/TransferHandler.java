@@ -0,0 +1,29 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * TransferHandler takes the data of every transfer a Receiver accepts, in
+ * place of writing it to a file. Only transfers sent as a single stream can
+ * be handed over this way.
+ */
+public interface TransferHandler {
+
+    /**
+     * Called when a transfer opens, on the Receiver's thread
+     * @param transferId Id the Sender gave the transfer
+     * @param sender Address the transfer comes from
+     * @return channel the transfer's bytes are written to in order and that is closed after the last
+     * of them. Writes happen on a thread of their own, behind a window's worth of queued packets, and
+     * the Receiver advertises the room left in that queue to the Sender. A write that blocks only
+     * slows down its own transfer's Sender, the Receiver and every other transfer carry on
+     */
+    WritableByteChannel open(int transferId, SocketAddress sender) throws IOException;
+
+    /**
+     * Called if the transfer is given up on before all of it arrived, just before its channel is closed
+     */
+    default void failed(int transferId, SocketAddress sender) {}
+}
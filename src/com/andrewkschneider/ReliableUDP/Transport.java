@@ -0,0 +1,57 @@
+package com.andrewkschneider.ReliableUDP;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport carries whole datagrams between a Sender and a Receiver. The
+ * real one is DatagramTransport over a UDP socket, NetworkEmulator hands out
+ * in-memory ones, and ImpairedTransport puts a LinkModel's loss, delay and
+ * the rest in front of either.
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Opens transports bound to a local port, the Sender and Receiver open theirs through one
+     */
+    @FunctionalInterface
+    interface Factory {
+        /**
+         * @param port Local port to bind to, 0 for any free port
+         */
+        Transport open(int port) throws IOException;
+    }
+
+    /**
+     * Sends the bytes between the buffer's position and limit as one datagram,
+     * leaving the position where it was so the packet can be sent again
+     */
+    void send(ByteBuffer packet, SocketAddress target) throws IOException;
+
+    /**
+     * Receives one datagram into buffer, which is flipped so the packet sits between position and limit
+     * @param timeout Time in ms to wait, 0 to wait forever
+     * @return address the datagram came from, or null if the timeout ran out first
+     */
+    SocketAddress receive(ByteBuffer buffer, long timeout) throws IOException;
+
+    /**
+     * Receives one datagram into buffer if there is one waiting, without blocking
+     * @return address the datagram came from, or null if nothing was waiting
+     */
+    SocketAddress poll(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Grows the send buffer to at least bytes, leaving it alone if it is already that big
+     * @return size the buffer ended up at
+     */
+    int growSendBuffer(int bytes) throws IOException;
+
+    /**
+     * Grows the receive buffer to at least bytes, leaving it alone if it is already that big
+     * @return size the buffer ended up at
+     */
+    int growReceiveBuffer(int bytes) throws IOException;
+}
@@ -0,0 +1,75 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CheckpointTest {
+
+    @TempDir
+    Path directory;
+
+    private Path file() throws IOException {
+        Path file = directory.resolve("out.bin");
+        Files.write(file, new byte[0]);
+        return file;
+    }
+
+    @Test
+    void savesRunsAndLoadsThemBack() throws IOException {
+        Path file = file();
+        Checkpoint checkpoint = new Checkpoint(file, 0x1234, 1000);
+        assertTrue(checkpoint.isEmpty());
+        for (int index: new int[]{ 0, 1, 2, 5, 7, 8 }) checkpoint.mark(index);
+        assertTrue(checkpoint.isDirty());
+        checkpoint.save();
+        assertFalse(checkpoint.isDirty());
+
+        Checkpoint loaded = Checkpoint.load(file, 0x1234, 1452);
+        assertNotNull(loaded);
+        assertEquals(1000, loaded.getMss());
+        ReceivedRanges ranges = loaded.ranges();
+        assertEquals(3, ranges.size());
+        assertEquals(6, ranges.count());
+        assertEquals(Arrays.asList(0, 3, 5, 7), Arrays.asList(ranges.start(0), ranges.end(0), ranges.start(1), ranges.start(2)));
+
+        checkpoint.delete();
+        assertNull(Checkpoint.load(file, 0x1234, 1452));
+    }
+
+    @Test
+    void onlyCarriesOnTheSameTransferAtASizeThatFits() throws IOException {
+        Path file = file();
+        Checkpoint checkpoint = new Checkpoint(file, 0x1234, 1000);
+        checkpoint.mark(3);
+        checkpoint.save();
+
+        assertNull(Checkpoint.load(file, 0x4321, 1452));
+        assertNull(Checkpoint.load(file, 0x1234, 500));
+        assertNotNull(Checkpoint.load(file, 0x1234, 1000));
+
+        // a checkpoint for a file that has gone is no use
+        Files.delete(file);
+        assertNull(Checkpoint.load(file, 0x1234, 1000));
+    }
+
+    @Test
+    void aCheckpointCutShortIsIgnored() throws IOException {
+        Path file = file();
+        Checkpoint checkpoint = new Checkpoint(file, 0x1234, 1000);
+        checkpoint.mark(3);
+        checkpoint.mark(9);
+        checkpoint.save();
+
+        Path saved = directory.resolve("out.bin.ckpt");
+        byte[] bytes = Files.readAllBytes(saved);
+        Files.write(saved, Arrays.copyOf(bytes, bytes.length - 3));
+        assertNull(Checkpoint.load(file, 0x1234, 1000));
+    }
+}
@@ -0,0 +1,90 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CongestionControllerTest {
+
+    @Test
+    void slowStartGrowsByWhatIsAcked(){
+        RenoController reno = new RenoController(2, 64);
+        reno.onAck(3, 2, 10);
+        assertEquals(4, reno.getWindow());
+        reno.onAck(7, 4, 10);
+        assertEquals(8, reno.getWindow());
+    }
+
+    @Test
+    void renoAddsOnePacketPerWindowInCongestionAvoidance(){
+        RenoController reno = new RenoController(10, 10);
+        reno.onAck(11, 10, 10);
+        assertEquals(11, reno.getWindow());
+    }
+
+    @Test
+    void thirdDuplicateAckHalvesTheWindowOnce(){
+        RenoController reno = new RenoController(20, 10);
+        assertFalse(reno.onDuplicateAck(50));
+        assertFalse(reno.onDuplicateAck(50));
+        assertTrue(reno.onDuplicateAck(50));
+        assertTrue(reno.isInRecovery());
+        assertEquals(10, reno.getWindow());
+        assertEquals(10, reno.getThreshold());
+
+        // more duplicates neither retransmit again nor inflate the window
+        for (int i = 0; i < 10; i++) assertFalse(reno.onDuplicateAck(50));
+        assertEquals(10, reno.getWindow());
+    }
+
+    @Test
+    void recoveryLastsUntilEverythingSentBeforeItIsAcked(){
+        RenoController reno = new RenoController(20, 10);
+        for (int i = 0; i < 3; i++) reno.onDuplicateAck(50);
+
+        // a partial ack points at the next hole and leaves cwnd where it is
+        assertTrue(reno.onAck(40, 5, 10));
+        assertTrue(reno.isInRecovery());
+        assertEquals(10, reno.getWindow());
+
+        assertFalse(reno.onAck(50, 10, 10));
+        assertFalse(reno.isInRecovery());
+        assertEquals(10, reno.getWindow());
+    }
+
+    @Test
+    void timeoutCollapsesTheWindow(){
+        RenoController reno = new RenoController(16, 64);
+        for (int i = 0; i < 3; i++) reno.onDuplicateAck(50);
+        reno.onTimeout();
+        assertEquals(1, reno.getWindow());
+        assertEquals(4, reno.getThreshold());
+        assertFalse(reno.isInRecovery());
+
+        // the threshold never goes below two packets
+        reno.onTimeout();
+        assertEquals(2, reno.getThreshold());
+    }
+
+    @Test
+    void cubicBacksOffLessThanReno(){
+        CubicController cubic = new CubicController(20, 10);
+        for (int i = 0; i < 3; i++) cubic.onDuplicateAck(50);
+        assertEquals(14, cubic.getWindow());
+    }
+
+    @Test
+    void cubicClimbsBackTowardsTheWindowBeforeTheLoss() throws InterruptedException {
+        CubicController cubic = new CubicController(100, 10);
+        for (int i = 0; i < 3; i++) cubic.onDuplicateAck(1000);
+        cubic.onAck(1000, 10, 10);
+        int after = cubic.getWindow();
+        assertEquals(70, after);
+
+        for (int i = 0; i < 50; i++){
+            Thread.sleep(10);
+            cubic.onAck(1000 + i, cubic.getWindow(), 10);
+        }
+        assertTrue(cubic.getWindow() > after);
+    }
+}
@@ -0,0 +1,299 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Whole transfers between a Sender and a Receiver over a NetworkEmulator,
+ * with the data path losing, reordering and delaying packets from a fixed
+ * seed so every run meets the same network.
+ */
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class EmulatedTransferTest {
+
+    private static final int PORT = 9000;
+    private static final PrintStream QUIET = new PrintStream(OutputStream.nullOutputStream());
+
+    @TempDir
+    Path directory;
+
+    private static byte[] data(int size){
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        // half of it compressible
+        Arrays.fill(data, size / 2, size, (byte)'a');
+        return data;
+    }
+
+    private static NetworkEmulator lossy(double loss){
+        LinkModel acks = new LinkModel();
+        acks.setDelay(1, 0.5);
+        LinkModel path = new LinkModel();
+        path.setLoss(loss);
+        path.setDelay(1, 0.5);
+        path.setReordering(0.02, 2);
+        path.setDuplication(0.01);
+        NetworkEmulator network = new NetworkEmulator(acks, 42);
+        network.setLink(PORT, path);
+        return network;
+    }
+
+    private static Receiver receiver(NetworkEmulator network, Path output){
+        Receiver.Builder receiving = new Receiver.Builder();
+        receiving.setAddress("127.0.0.1");
+        receiving.setPort(PORT);
+        receiving.setTransport(network);
+        receiving.setFileName(output.toString());
+        receiving.setLogStream(QUIET);
+        return receiving.create();
+    }
+
+    /**
+     * Starts a Sender on a thread of its own, sending whatever is written to pipe until it is closed
+     */
+    private static FutureTask<Void> sendFrom(NetworkEmulator network, Pipe pipe, int idleTimeout){
+        Sender.Builder sending = Sender.Builder();
+        sending.setReceiverIp("127.0.0.1");
+        sending.setPort(PORT);
+        sending.setTransport(network);
+        sending.setInput(pipe.source());
+        sending.setIdleTimeout(idleTimeout);
+        sending.setLogStream(QUIET);
+        Sender sender = sending.create();
+        FutureTask<Void> sent = new FutureTask<>(() -> {
+            sender.transfer();
+            return null;
+        });
+        new Thread(sent, "sender").start();
+        return sent;
+    }
+
+    @ParameterizedTest(name = "selective={0} fec={1} compress={2} streams={3}")
+    @CsvSource({
+            "false, 0, false, 1",
+            "true, 0, false, 1",
+            "true, 8, true, 1",
+            "true, 0, false, 3",
+    })
+    void fileArrivesWholeOverALossyPath(boolean selective, int fecGroup, boolean compress, int streams) throws Exception {
+        NetworkEmulator network = lossy(0.03);
+        byte[] data = data(300_000);
+        Path input = directory.resolve("in.bin");
+        Path output = directory.resolve("out.bin");
+        Files.write(input, data);
+
+        Receiver.Builder receiving = new Receiver.Builder();
+        receiving.setAddress("127.0.0.1");
+        receiving.setPort(PORT);
+        receiving.setTransport(network);
+        receiving.setWindowSize(32);
+        receiving.setSelectiveRepeat(selective);
+        receiving.setFileName(output.toString());
+        receiving.setLogStream(QUIET);
+        Receiver receiver = receiving.create();
+        CompletableFuture<Void> received = CompletableFuture.runAsync(receiver::receive);
+
+        Sender.Builder sending = Sender.Builder();
+        sending.setReceiverIp("127.0.0.1");
+        sending.setPort(PORT);
+        sending.setTransport(network);
+        sending.setFileName(input.toString());
+        sending.setWindowSize(32);
+        sending.setSelectiveRepeat(selective);
+        if (fecGroup > 0) sending.setFec(fecGroup, 1);
+        sending.setCompression(compress);
+        sending.setStreams(streams);
+        sending.setLogStream(QUIET);
+        Sender sender = sending.create();
+        sender.transfer();
+        received.get(30, TimeUnit.SECONDS);
+
+        assertArrayEquals(data, Files.readAllBytes(output));
+        assertTrue(network.getDropped() > 0);
+        assertTrue(sender.getMetrics().getRetransmissions() + receiver.getMetrics().getPacketsRecovered() > 0);
+        if (compress) assertTrue(sender.getMetrics().getBytesSaved() > 0);
+    }
+
+    @Test
+    void aBatchThatRunsDryStillAcksRightAway() throws Exception {
+        // nothing lost or reordered, so any resend could only be down to an ack held back
+        LinkModel link = new LinkModel();
+        link.setDelay(1, 0);
+        NetworkEmulator network = new NetworkEmulator(link, 42);
+        byte[] data = data(200_000);
+        Path input = directory.resolve("in.bin");
+        Path output = directory.resolve("out.bin");
+        Files.write(input, data);
+
+        // a window far smaller than the batch, so every batch runs dry and the Sender
+        // has nothing more to send until the acks it held back come in
+        Receiver.Builder receiving = new Receiver.Builder();
+        receiving.setAddress("127.0.0.1");
+        receiving.setPort(PORT);
+        receiving.setTransport(network);
+        receiving.setWindowSize(4);
+        receiving.setBatchSize(16);
+        receiving.setFileName(output.toString());
+        receiving.setLogStream(QUIET);
+        Receiver receiver = receiving.create();
+        CompletableFuture<Void> received = CompletableFuture.runAsync(receiver::receive);
+
+        Sender.Builder sending = Sender.Builder();
+        sending.setReceiverIp("127.0.0.1");
+        sending.setPort(PORT);
+        sending.setTransport(network);
+        sending.setFileName(input.toString());
+        sending.setWindowSize(4);
+        sending.setLogStream(QUIET);
+        Sender sender = sending.create();
+        sender.transfer();
+        received.get(30, TimeUnit.SECONDS);
+
+        assertArrayEquals(data, Files.readAllBytes(output));
+        assertEquals(0, sender.getMetrics().getTimeouts());
+        assertEquals(0, sender.getMetrics().getRetransmissions());
+        assertTrue(sender.getMetrics().getAckLatencyMax() < 100);
+    }
+
+    @Test
+    void messagesAndStreamsRoundTrip() throws Exception {
+        NetworkEmulator network = lossy(0.01);
+        byte[] data = data(100_000);
+        try (ReliableServerSocket server = new ReliableServerSocket(PORT, builder -> builder.setTransport(network));
+             ReliableSocket socket = new ReliableSocket("127.0.0.1", PORT, builder -> builder.setTransport(network))){
+            CompletableFuture<byte[]> message = server.receive();
+            socket.send(data).get(30, TimeUnit.SECONDS);
+            assertArrayEquals(data, message.get(30, TimeUnit.SECONDS));
+
+            try (OutputStream out = socket.openStream()){
+                out.write(data);
+            }
+            try (InputStream in = server.accept()){
+                assertArrayEquals(data, in.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    void aStalledReaderOnlyHoldsBackItsOwnTransfer() throws Exception {
+        NetworkEmulator network = lossy(0.01);
+        byte[] data = data(1_000_000);
+        try (ReliableServerSocket server = new ReliableServerSocket(PORT, builder -> { builder.setTransport(network); builder.setWindowSize(32); });
+             ReliableSocket socket = new ReliableSocket("127.0.0.1", PORT, builder -> { builder.setTransport(network); builder.setWindowSize(32); })){
+            CompletableFuture<Void> stalledSend = socket.send(data);
+            InputStream stalled = server.accept();
+            byte[] start = stalled.readNBytes(10_000);
+
+            // with the first reader stalled, a second transfer still goes through
+            CompletableFuture<byte[]> other = server.receive();
+            socket.send(data).get(30, TimeUnit.SECONDS);
+            assertArrayEquals(data, other.get(30, TimeUnit.SECONDS));
+            assertFalse(stalledSend.isDone());
+
+            byte[] rest = stalled.readAllBytes();
+            stalledSend.get(30, TimeUnit.SECONDS);
+            byte[] whole = Arrays.copyOf(start, start.length + rest.length);
+            System.arraycopy(rest, 0, whole, start.length, rest.length);
+            assertArrayEquals(data, whole);
+        }
+    }
+
+    @Test
+    void aPauseInTheInputDoesNotEndTheStream() throws Exception {
+        NetworkEmulator network = lossy(0);
+        byte[] data = data(100_000);
+        try (ReliableServerSocket server = new ReliableServerSocket(PORT, builder -> { builder.setTransport(network); builder.setIdleTimeout(1500); });
+             ReliableSocket socket = new ReliableSocket("127.0.0.1", PORT, builder -> builder.setTransport(network))){
+            CompletableFuture<byte[]> received = server.receive();
+            try (OutputStream out = socket.openStream()){
+                out.write(data, 0, 50_000);
+                Thread.sleep(3000);
+                out.write(data, 50_000, 50_000);
+            }
+            assertArrayEquals(data, received.get(30, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void aSenderWhoseReceiverHasGoneGivesUp(){
+        NetworkEmulator network = lossy(0);
+        Sender.Builder sending = Sender.Builder();
+        sending.setReceiverIp("127.0.0.1");
+        sending.setPort(PORT);
+        sending.setTransport(network);
+        sending.setInput(Channels.newChannel(new ByteArrayInputStream(new byte[10])));
+        sending.setTimeout(50);
+        sending.setLogStream(QUIET);
+        IOException failure = assertThrows(IOException.class, () -> sending.create().transfer());
+        assertNotNull(failure.getMessage());
+    }
+
+    @Test
+    void aSenderWhoseReceiverRestartsMidTransferFailsOnTheReset() throws Exception {
+        NetworkEmulator network = lossy(0);
+        Receiver first = receiver(network, directory.resolve("out.bin"));
+        CompletableFuture<Void> received = CompletableFuture.runAsync(first::receive);
+        Pipe pipe = Pipe.open();
+        FutureTask<Void> sent = sendFrom(network, pipe, 60000);
+        pipe.sink().write(ByteBuffer.wrap(data(50_000)));
+        while (first.getMetrics().getBytesReceived() == 0) Thread.sleep(10);
+
+        // a Receiver that never heard of the stream takes over the port, and answers what comes next with a RESET
+        first.close();
+        received.get(10, TimeUnit.SECONDS);
+        Receiver second = receiver(network, directory.resolve("other.bin"));
+        CompletableFuture.runAsync(second::receive);
+        pipe.sink().write(ByteBuffer.wrap(data(10_000)));
+
+        // well inside the minute the Sender would wait out before giving up on a silent Receiver
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> sent.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(ConnectException.class, failure.getCause());
+        assertTrue(failure.getCause().getMessage().contains("no session"));
+        second.close();
+    }
+
+    @Test
+    void aSenderCutOffMidTransferGivesUpAfterItsIdleTimeout() throws Exception {
+        LinkModel link = new LinkModel();
+        link.setDelay(1, 0);
+        NetworkEmulator network = new NetworkEmulator(link, 42);
+        Receiver receiver = receiver(network, directory.resolve("out.bin"));
+        CompletableFuture.runAsync(receiver::receive);
+        Pipe pipe = Pipe.open();
+        FutureTask<Void> sent = sendFrom(network, pipe, 1000);
+        pipe.sink().write(ByteBuffer.wrap(data(50_000)));
+        while (receiver.getMetrics().getBytesReceived() == 0) Thread.sleep(10);
+
+        // from now on nothing gets through either way, so what is sent next is never acked
+        link.setLoss(1);
+        pipe.sink().write(ByteBuffer.wrap(data(10_000)));
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> sent.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(ConnectException.class, failure.getCause());
+        assertEquals("Receiver stopped answering", failure.getCause().getMessage());
+        receiver.close();
+    }
+}
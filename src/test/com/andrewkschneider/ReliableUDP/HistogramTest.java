@@ -0,0 +1,48 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistogramTest {
+
+    @Test
+    void emptyHistogramReportsZero(){
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMean());
+    }
+
+    @Test
+    void smallValuesAreExact(){
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 8; i++) histogram.record(i);
+        assertEquals(4, histogram.getPercentile(50));
+        assertEquals(8, histogram.getPercentile(100));
+        assertEquals(4.5, histogram.getMean());
+    }
+
+    @Test
+    void percentilesAreWithinABucketOfTheTruth(){
+        Histogram histogram = new Histogram();
+        for (long i = 1; i <= 100_000; i++) histogram.record(i);
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(100_000, histogram.getMax());
+        for (double percentile: new double[]{ 1, 25, 50, 90, 99, 99.9 }){
+            long truth = (long)(100_000 * percentile / 100);
+            long reported = histogram.getPercentile(percentile);
+            assertTrue(reported >= truth && reported <= truth * 1.125, percentile + "th was " + reported);
+        }
+        assertEquals(100_000, histogram.getPercentile(100));
+    }
+
+    @Test
+    void hugeAndNegativeValuesStillFit(){
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+}
@@ -0,0 +1,113 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LinkModelTest {
+
+    private final long[] arrivals = new long[2];
+    private final int[] bits = new int[2];
+
+    @Test
+    void aPerfectLinkDeliversEverythingAtOnce(){
+        LinkModel.Link link = new LinkModel().newLink(1);
+        for (int i = 0; i < 1000; i++){
+            assertEquals(1, link.transmit(100, i, arrivals, bits));
+            assertEquals(i, arrivals[0]);
+            assertEquals(-1, bits[0]);
+        }
+    }
+
+    @Test
+    void theSameSeedMakesTheSameDecisions(){
+        LinkModel model = new LinkModel();
+        model.setLoss(0.1);
+        model.setDelay(5, 2);
+        model.setDuplication(0.05);
+        LinkModel.Link first = model.newLink(42);
+        LinkModel.Link second = model.newLink(42);
+        long[] other = new long[2];
+        for (int i = 0; i < 1000; i++){
+            int copies = first.transmit(100, i, arrivals, bits);
+            assertEquals(copies, second.transmit(100, i, other, new int[2]));
+            for (int c = 0; c < copies; c++) assertEquals(arrivals[c], other[c]);
+        }
+    }
+
+    @Test
+    void lossAndDuplicationComeAtTheirRates(){
+        LinkModel model = new LinkModel();
+        model.setLoss(0.2);
+        model.setDuplication(0.1);
+        LinkModel.Link link = model.newLink(7);
+        int lost = 0, doubled = 0;
+        for (int i = 0; i < 100_000; i++){
+            int copies = link.transmit(100, 0, arrivals, bits);
+            if (copies == LinkModel.Link.LOST) lost++;
+            else if (copies == 2) doubled++;
+        }
+        assertEquals(20_000, lost, 1000);
+        assertEquals(8_000, doubled, 600);
+    }
+
+    @Test
+    void burstsLoseRunsOfPackets(){
+        LinkModel model = new LinkModel();
+        model.setBurstLoss(0.01, 0.25, 1);
+        LinkModel.Link link = model.newLink(3);
+        int losses = 0, runs = 0;
+        boolean previous = false;
+        for (int i = 0; i < 100_000; i++){
+            boolean lost = link.transmit(100, 0, arrivals, bits) == LinkModel.Link.LOST;
+            if (lost){
+                losses++;
+                if (!previous) runs++;
+            }
+            previous = lost;
+        }
+        // bursts average 1/r packets
+        assertEquals(4, (double)losses / runs, 0.5);
+    }
+
+    @Test
+    void delayAndJitterStayInBounds(){
+        LinkModel model = new LinkModel();
+        model.setDelay(10, 2);
+        LinkModel.Link link = model.newLink(5);
+        for (int i = 0; i < 1000; i++){
+            link.transmit(100, 0, arrivals, bits);
+            assertTrue(arrivals[0] >= 8_000_000 && arrivals[0] <= 12_000_000, "arrival " + arrivals[0]);
+        }
+        assertTrue(model.delays());
+        assertFalse(new LinkModel().delays());
+    }
+
+    @Test
+    void bandwidthSpacesPacketsOutAndDropsPastTheQueue(){
+        LinkModel model = new LinkModel();
+        // a 1000 byte packet takes a millisecond, and two can wait
+        model.setBandwidth(1_000_000, 2000);
+        LinkModel.Link link = model.newLink(9);
+        for (int i = 1; i <= 3; i++){
+            assertEquals(1, link.transmit(1000, 0, arrivals, bits));
+            assertEquals(i * 1_000_000L, arrivals[0]);
+        }
+        assertEquals(LinkModel.Link.LOST, link.transmit(1000, 0, arrivals, bits));
+    }
+
+    @Test
+    void dropCorruptSplitsTheRateBetweenLossAndBitErrors(){
+        LinkModel.Link link = LinkModel.dropCorrupt(0.2).newLink(11);
+        int lost = 0, corrupted = 0;
+        for (int i = 0; i < 100_000; i++){
+            if (link.transmit(100, 0, arrivals, bits) == LinkModel.Link.LOST) lost++;
+            else if (bits[0] >= 0){
+                assertTrue(bits[0] < 800);
+                corrupted++;
+            }
+        }
+        assertEquals(10_000, lost, 600);
+        assertEquals(10_000, corrupted, 600);
+    }
+}
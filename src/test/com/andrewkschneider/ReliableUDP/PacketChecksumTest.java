@@ -0,0 +1,71 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PacketChecksumTest {
+
+    private static ByteBuffer data(int payload, PacketChecksum checksum){
+        byte[] bytes = new byte[payload];
+        new Random(payload).nextBytes(bytes);
+        ByteBuffer packet = ByteBuffer.allocateDirect(PacketView.HEADER_LENGTH + payload + PacketChecksum.TRAILER_LENGTH);
+        new PacketView().wrap(packet).writeData(0x123456, 42, 42, ByteBuffer.wrap(bytes), payload);
+        checksum.seal(packet);
+        return packet;
+    }
+
+    @ParameterizedTest
+    @EnumSource(PacketChecksum.class)
+    void sealedPacketsVerifyAndCarryTheirKind(PacketChecksum checksum){
+        for (int payload = 0; payload < 40; payload++){
+            ByteBuffer packet = data(payload, checksum);
+            assertEquals(PacketView.HEADER_LENGTH + payload + checksum.trailerLength(), packet.limit());
+            assertEquals(checksum, PacketChecksum.of(packet));
+            assertTrue(PacketChecksum.verify(packet), "payload of " + payload);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(PacketChecksum.class)
+    void anyFlippedBitPastLenIsCaught(PacketChecksum checksum){
+        ByteBuffer packet = data(33, checksum);
+        for (int bit = PacketView.CONN_ID * 8; bit < (PacketView.HEADER_LENGTH + 33) * 8; bit++){
+            packet.put(bit / 8, (byte)(packet.get(bit / 8) ^ (1 << (bit % 8))));
+            assertFalse(PacketChecksum.verify(packet), "bit " + bit);
+            packet.put(bit / 8, (byte)(packet.get(bit / 8) ^ (1 << (bit % 8))));
+        }
+        assertTrue(PacketChecksum.verify(packet));
+    }
+
+    @Test
+    void internetChecksumMatchesRfc1071(){
+        // the worked example from RFC 1071 section 3 sums to 0xddf2, len adds 12
+        ByteBuffer packet = ByteBuffer.allocate(12);
+        packet.put(new byte[]{ 0, 0, 0, 12, 0, 1, (byte)0xf2, 0x03, (byte)0xf4, (byte)0xf5, (byte)0xf6, (byte)0xf7 }).flip();
+        PacketChecksum.INTERNET.seal(packet);
+        assertEquals((short)~0xddfe, packet.getShort(PacketView.CKSUM));
+        assertTrue(PacketChecksum.verify(packet));
+    }
+
+    @Test
+    void datagramsTooShortForTheirLenAreRejected(){
+        // shorter than an ack, or claiming a len shorter than one, can't be read safely whatever the sum says
+        assertNull(PacketChecksum.of(ByteBuffer.allocate(8)));
+        ByteBuffer packet = ByteBuffer.allocate(PacketView.HEADER_LENGTH);
+        packet.putShort(PacketView.LEN, (short)4);
+        packet.limit(8);
+        assertNull(PacketChecksum.of(packet));
+        assertFalse(PacketChecksum.verify(packet));
+
+        // and so are those with part of a trailer past len
+        ByteBuffer odd = data(10, PacketChecksum.CRC32C);
+        odd.limit(odd.limit() - 1);
+        assertNull(PacketChecksum.of(odd));
+    }
+}
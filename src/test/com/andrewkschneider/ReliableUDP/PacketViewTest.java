@@ -0,0 +1,157 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PacketViewTest {
+
+    private final PacketView view = new PacketView().wrap(ByteBuffer.allocate(256));
+
+    @Test
+    void dataPacketsCarryTheirIndexAndPayload(){
+        ByteBuffer source = ByteBuffer.wrap("hello world".getBytes(StandardCharsets.US_ASCII));
+        view.writeData(0xabcdef12, 99, 1234, source, 5);
+        assertEquals(5, source.position());
+        assertEquals(PacketView.HEADER_LENGTH + 5, view.buffer().limit());
+        assertEquals(PacketView.HEADER_LENGTH + 5, view.getLen());
+        assertEquals(0xabcdef12, view.getConnId());
+        assertEquals(99, view.getIndex());
+        assertEquals(1234, view.getSeqno());
+        assertEquals(5, view.getPayloadLength());
+        assertFalse(view.isControl());
+        assertFalse(view.isParity());
+        assertFalse(view.isCompressed());
+
+        view.setCompressed();
+        assertTrue(view.isCompressed());
+        assertEquals(99, view.getIndex());
+
+        ByteBuffer payload = view.payload();
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        assertEquals("hello", new String(bytes, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void acksOnlyReadTheFieldsTheirLenCovers(){
+        view.writeAck(7, 100, 0b101, false);
+        assertEquals(PacketView.ACK_LENGTH, view.getLen());
+        assertEquals(7, view.getConnId());
+        assertEquals(100, view.getAckno());
+        assertEquals(0, view.getSack());
+        assertEquals(Integer.MAX_VALUE, view.getAdvertised());
+
+        view.writeAck(7, 100, 0b101, true);
+        assertEquals(PacketView.SACK_LENGTH, view.getLen());
+        assertEquals(0b101, view.getSack());
+        assertEquals(0, view.getRecovered());
+
+        view.writeAck(7, 100, 0b101, 3);
+        assertEquals(PacketView.FEC_ACK_LENGTH, view.getLen());
+        assertEquals(0b101, view.getSack());
+        assertEquals(3, view.getRecovered());
+        assertEquals(Integer.MAX_VALUE, view.getAdvertised());
+
+        view.writeAck(7, 100, 0b101, 3, 0);
+        assertEquals(PacketView.FLOW_ACK_LENGTH, view.getLen());
+        assertEquals(3, view.getRecovered());
+        assertEquals(0, view.getAdvertised());
+    }
+
+    @Test
+    void controlPacketsAreToldApartBySeqnoAndLength(){
+        view.writeControl(0x100, PacketView.SYN, 555, 1452, 0);
+        assertEquals(PacketView.CONTROL_LENGTH, view.getLen());
+        assertTrue(view.isControl());
+        assertEquals(PacketView.SYN, view.getType());
+        assertEquals(555, view.getFirstSeqno());
+        assertEquals(1452, view.getMss());
+
+        view.setFlags(PacketView.FLAG_SACK | PacketView.FLAG_FEC);
+        view.setWindow(64);
+        view.setOffset(12);
+        view.setFecGroup(8);
+        assertEquals(PacketView.FLAG_SACK | PacketView.FLAG_FEC, view.getFlags());
+        assertEquals(64, view.getWindow());
+        assertEquals(12, view.getOffset());
+        assertEquals(8, view.getFecGroup());
+
+        // a probe is padded out, but is still a control packet
+        view.writeControl(0x100, PacketView.PROBE, 555, 200, 200);
+        assertEquals(PacketView.HEADER_LENGTH + 200, view.getLen());
+        assertTrue(view.isControl());
+
+        // data never has a zero seqno
+        view.writeData(0x100, 555, 555, ByteBuffer.allocate(8), 8);
+        assertFalse(view.isControl());
+    }
+
+    @Test
+    void parityCarriesItsStripeInPlaceOfTheAckno(){
+        ByteBuffer xor = ByteBuffer.wrap(new byte[]{ 1, 2, 3 });
+        view.writeParity(0x200, 1000, 4, 3, 0x8005, xor, 3);
+        assertTrue(view.isParity());
+        assertFalse(view.isControl());
+        assertEquals(1000, view.getParityFirst());
+        assertEquals(4, view.getParityStride());
+        assertEquals(3, view.getParityCount());
+        assertEquals(0x8005, view.getParityLengths());
+        assertEquals(3, view.getPayloadLength());
+        assertEquals(0, xor.position());
+    }
+
+    @Test
+    void customPacketReadsWhatTheViewWrites(){
+        byte[] payload = { 1, 2, 3, 4 };
+        view.writeData(9, 42, 42, ByteBuffer.wrap(payload), payload.length);
+        PacketChecksum.CRC32C.seal(view.buffer());
+        byte[] bytes = new byte[view.buffer().remaining()];
+        view.buffer().get(bytes);
+
+        CustomPacket packet = CustomPacket.parsePacket(bytes);
+        assertTrue(packet.isValid());
+        assertEquals(9, packet.getConnId());
+        assertEquals(42, packet.getSeqno());
+        assertArrayEquals(payload, packet.getData());
+    }
+
+    @Test
+    void customPacketRejectsALenTooShortForAHeader(){
+        view.writeData(9, 42, 42, ByteBuffer.allocate(0), 0);
+        view.buffer().putShort(PacketView.LEN, (short)(PacketView.HEADER_LENGTH - 2)).limit(PacketView.HEADER_LENGTH - 2);
+        PacketChecksum.CRC32C.seal(view.buffer());
+        byte[] bytes = new byte[view.buffer().remaining()];
+        view.buffer().get(bytes);
+
+        CustomPacket packet = CustomPacket.parsePacket(bytes);
+        assertFalse(packet.isValid());
+        assertNull(packet.getData());
+        assertFalse(CustomPacket.parseAck(bytes).isValid());
+    }
+
+    @Test
+    void resumeAcksListRunsAfterTheControlFields(){
+        assertEquals(PacketView.MAX_RANGES, PacketView.maxRanges(1452));
+        assertEquals(1, PacketView.maxRanges(0));
+
+        view.writeControl(0x300, PacketView.RESUME_ACK, 9, 0, PacketView.CONTROL_LENGTH - PacketView.HEADER_LENGTH + 2 * PacketView.RANGE_LENGTH);
+        view.setRange(0, 0, 10);
+        view.setRange(1, 20, 25);
+        assertEquals(2, view.getRangeCount());
+        assertEquals(20, view.getRangeStart(1));
+        assertEquals(25, view.getRangeEnd(1));
+    }
+
+    @Test
+    void connectionIdsPackTransferStreamAndCount(){
+        int connId = PacketView.connId(0xabcdef, 3, 5);
+        assertEquals(0xabcdef, PacketView.transferId(connId));
+        assertEquals(3, PacketView.streamIndex(connId));
+        assertEquals(5, PacketView.streamCount(connId));
+        assertEquals(PacketView.MAX_STREAMS, PacketView.streamCount(PacketView.connId(1, 15, PacketView.MAX_STREAMS)));
+    }
+}
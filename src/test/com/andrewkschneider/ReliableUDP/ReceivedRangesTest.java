@@ -0,0 +1,77 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReceivedRangesTest {
+
+    @Test
+    void nothingReceivedNumbersFromTheOffset(){
+        assertEquals(0, ReceivedRanges.NONE.size());
+        assertEquals(17, ReceivedRanges.NONE.index(10, 7));
+        assertEquals(5, ReceivedRanges.NONE.missing(5));
+        List<int[]> runs = ReceivedRanges.NONE.missingRuns(3, 4);
+        assertEquals(1, runs.size());
+        assertArrayEquals(new int[]{ 3, 7 }, runs.get(0));
+    }
+
+    @Test
+    void skipsOverReceivedRuns(){
+        ReceivedRanges ranges = new ReceivedRanges(new int[]{ 2, 6 }, new int[]{ 4, 9 });
+        assertEquals(5, ranges.count());
+        assertEquals(2, ranges.received(5));
+        assertEquals(3, ranges.missing(5));
+        // missing indexes are 0 1 4 5 9 10 ...
+        assertEquals(0, ranges.index(0, 0));
+        assertEquals(4, ranges.index(0, 2));
+        assertEquals(9, ranges.index(0, 4));
+        assertEquals(4, ranges.index(2, 0));
+        assertEquals(10, ranges.index(6, 1));
+        assertEquals(0, ranges.find(3));
+        assertEquals(1, ranges.find(4));
+        assertEquals(2, ranges.find(9));
+    }
+
+    @Test
+    void agreesWithCountingMissingIndexesOneByOne(){
+        Random rng = new Random(3);
+        for (int trial = 0; trial < 200; trial++){
+            int n = 200;
+            boolean[] got = new boolean[n + 50];
+            for (int i = 0; i < n; i++) got[i] = rng.nextInt(3) == 0 || (i < 50 && trial % 2 == 0);
+            List<int[]> runs = new ArrayList<>();
+            for (int i = 0; i < n; i++){
+                if (!got[i]) continue;
+                int start = i;
+                while (i < n && got[i]) i++;
+                runs.add(new int[]{ start, i });
+            }
+            ReceivedRanges ranges = new ReceivedRanges(runs);
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < got.length; i++) if (!got[i]) missing.add(i);
+
+            for (int limit = 0, count = 0; limit <= n + 20; count += got[limit] ? 0 : 1, limit++){
+                assertEquals(count, ranges.missing(limit), "missing below " + limit);
+            }
+            for (int from = 0; from < n; from++){
+                int first = 0;
+                while (missing.get(first) < from) first++;
+                for (int k = 0; k < 20; k++) assertEquals(missing.get(first + k), ranges.index(from, k), "index " + from + " " + k);
+
+                int count = rng.nextInt(15);
+                List<Integer> listed = new ArrayList<>();
+                for (int[] run: ranges.missingRuns(from, count)){
+                    assertTrue(run[0] < run[1], "empty run " + Arrays.toString(run));
+                    for (int i = run[0]; i < run[1]; i++) listed.add(i);
+                }
+                assertEquals(missing.subList(first, first + count), listed, "runs from " + from);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RtoEstimatorTest {
+
+    @Test
+    void firstSampleSetsSrttAndHalfOfItAsVariance(){
+        RtoEstimator rto = new RtoEstimator(2000, 20, 60000);
+        assertEquals(2000, rto.getTimeout());
+        assertTrue(rto.getSrtt() < 0);
+
+        rto.sample(100);
+        assertEquals(100, rto.getSrtt());
+        assertEquals(50, rto.getRttvar());
+        assertEquals(300, rto.getTimeout());
+    }
+
+    @Test
+    void laterSamplesAreSmoothed(){
+        RtoEstimator rto = new RtoEstimator(2000, 1, 60000);
+        rto.sample(100);
+        rto.sample(200);
+        assertEquals(112.5, rto.getSrtt(), 1e-9);
+        assertEquals(0.75 * 50 + 0.25 * 100, rto.getRttvar(), 1e-9);
+
+        // a steady RTT lets the variance die away, but the clock granularity keeps the RTO above SRTT
+        for (int i = 0; i < 200; i++) rto.sample(10);
+        assertTrue(rto.getTimeout() > rto.getSrtt());
+        assertEquals((long)Math.ceil(rto.getSrtt() + 1), rto.getTimeout());
+    }
+
+    @Test
+    void backoffDoublesUpToTheMaximum(){
+        RtoEstimator rto = new RtoEstimator(1000, 20, 5000);
+        rto.backoff();
+        assertEquals(2000, rto.getTimeout());
+        rto.backoff();
+        rto.backoff();
+        assertEquals(5000, rto.getTimeout());
+
+        // a fresh sample undoes the backoff
+        rto.sample(10);
+        assertEquals(30, rto.getTimeout());
+    }
+
+    @Test
+    void timeoutIsClampedToTheMinimum(){
+        RtoEstimator rto = new RtoEstimator(5, 20, 60000);
+        assertEquals(20, rto.getTimeout());
+        rto.sample(0.1);
+        assertEquals(20, rto.getTimeout());
+    }
+}
@@ -0,0 +1,127 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SlidingWindowTest {
+
+    private final BufferPool pool = new BufferPool(64, 8);
+
+    private SlidingWindow filled(int capacity, int firstSeqno, int packets){
+        SlidingWindow window = new SlidingWindow(capacity, firstSeqno, pool);
+        for (int i = 0; i < packets; i++) window.add(pool.acquire(), 1000 + i);
+        return window;
+    }
+
+    @Test
+    void fillsUpAndSlidesOnCumulativeAcks(){
+        SlidingWindow window = filled(4, 10, 4);
+        assertTrue(window.isFull());
+        assertThrows(IllegalStateException.class, () -> window.add(ByteBuffer.allocate(1), 0));
+
+        assertEquals(2, window.ackThrough(12));
+        assertEquals(12, window.getBase());
+        assertFalse(window.isFull());
+        assertNull(window.get(11));
+        assertNotNull(window.get(12));
+
+        // an old ack moves nothing, one past next stops at next
+        assertEquals(0, window.ackThrough(11));
+        assertEquals(2, window.ackThrough(100));
+        assertTrue(window.isEmpty());
+    }
+
+    @Test
+    void sackedPacketsAreLeftOutOfTheDeadlines(){
+        SlidingWindow window = filled(8, 1, 5);
+        assertEquals(1000, window.earliestDeadline());
+
+        window.markAcked(1);
+        window.markAcked(2);
+        assertEquals(1002, window.earliestDeadline());
+        assertTrue(window.isAcked(2));
+
+        // nothing outside the window can be marked
+        window.markAcked(6);
+        assertFalse(window.isAcked(6));
+
+        window.setDeadline(4, 500);
+        assertEquals(500, window.earliestDeadline());
+        window.ackThrough(6);
+        assertEquals(Long.MAX_VALUE, window.earliestDeadline());
+    }
+
+    @Test
+    void pipeLeavesOutAckedAndLostPackets(){
+        SlidingWindow window = filled(8, 1, 5);
+        window.markAcked(3);
+        window.markLost(1);
+        assertEquals(3, window.pipe());
+        // lost packets have no timer running, acked ones aren't waited on
+        assertEquals(1001, window.earliestDeadline());
+
+        window.markRetransmitted(1);
+        assertEquals(4, window.pipe());
+        assertFalse(window.isLost(1));
+
+        // an acked packet can't be lost, and nothing outside the window can be marked
+        window.markLost(3);
+        window.markLost(6);
+        assertEquals(4, window.pipe());
+    }
+
+    @Test
+    void remembersWhichPacketsWereResentUntilTheirSlotIsReused(){
+        SlidingWindow window = filled(2, 1, 2);
+        window.markRetransmitted(1);
+        assertTrue(window.isRetransmitted(1));
+        assertFalse(window.isRetransmitted(2));
+        assertTrue(window.timeSinceSent(1) >= 0);
+
+        // Karn's rule only holds off sampling the resent packet, not the one taking its slot
+        window.ackThrough(2);
+        window.add(pool.acquire(), 0);
+        assertFalse(window.isRetransmitted(3));
+    }
+
+    @Test
+    void onlySamplesAcksForPacketsSentOnce(){
+        SlidingWindow window = filled(8, 1, 6);
+        assertTrue(window.isSampleable(3));
+        assertFalse(window.isSampleable(1));
+        assertFalse(window.isSampleable(8));
+
+        // a gap filled by a resend times the resend's wait, not the newest packet's
+        window.markRetransmitted(2);
+        assertFalse(window.isSampleable(4));
+
+        // catching up with packets SACKed earlier doesn't time them either
+        window.ackThrough(3);
+        window.markAcked(4);
+        assertFalse(window.isSampleable(5));
+        assertTrue(window.isSampleable(4));
+    }
+
+    @Test
+    void receiverSideSlidesPastWhatArrivedInOrder(){
+        SlidingWindow window = new SlidingWindow(4, null);
+        assertTrue(window.markReceived(3));
+        assertFalse(window.markReceived(3));
+        assertFalse(window.markReceived(5));
+        assertEquals(0, window.slide());
+
+        assertTrue(window.markReceived(1));
+        assertTrue(window.markReceived(2));
+        assertEquals(3, window.slide());
+        assertEquals(4, window.getBase());
+        assertTrue(window.isReceived(2));
+        assertFalse(window.isReceived(4));
+
+        // slots are reused once the window has wrapped around
+        assertTrue(window.markReceived(7));
+        assertFalse(window.isReceived(3 + 8));
+    }
+}
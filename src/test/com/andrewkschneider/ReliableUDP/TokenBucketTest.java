@@ -0,0 +1,48 @@
+package com.andrewkschneider.ReliableUDP;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+
+    @Test
+    void burstsUpToTheCapacityThenWaits(){
+        // a byte every second, so nothing worth counting refills during the test
+        TokenBucket bucket = new TokenBucket(1, 3000);
+        assertEquals(0, bucket.tryConsume(1500));
+        assertEquals(0, bucket.tryConsume(1500));
+        long delay = bucket.tryConsume(1500);
+        assertTrue(delay > 1000L * 1_000_000_000L, "delay " + delay);
+
+        // a packet that can't go takes nothing, or the next would have twice as long to wait
+        assertTrue(bucket.delay(1500) <= delay);
+    }
+
+    @Test
+    void refillsAtTheRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1_000_000, 1000);
+        assertEquals(0, bucket.tryConsume(1000));
+        long delay = bucket.delay(1000);
+        assertTrue(delay > 0 && delay <= 1_000_000, "delay " + delay);
+        Thread.sleep(5);
+        assertEquals(0, bucket.tryConsume(1000));
+    }
+
+    @Test
+    void consumeRunsIntoDebt(){
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+        bucket.consume(3000);
+        // 2000 bytes in debt and 1000 more wanted at 1000 bytes a second
+        long delay = bucket.delay(1000);
+        assertTrue(delay > 2_900_000_000L && delay <= 3_000_000_000L, "delay " + delay);
+    }
+
+    @Test
+    void shrinkingTheBucketDropsTheTokensOverIt(){
+        TokenBucket bucket = new TokenBucket(1, 10000);
+        bucket.setRate(1, 100);
+        assertEquals(0, bucket.tryConsume(100));
+        assertTrue(bucket.tryConsume(1) > 0);
+    }
+}